@@ -6,8 +6,8 @@ import android.content.pm.PackageManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Handler;
 import android.util.Log;
+import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
@@ -20,13 +20,12 @@ import org.sil.bloom.reader.models.BookCollection;
 
 import java.io.File;
 import java.util.Iterator;
+import java.util.List;
 
 // A base abstract class which every activity should extend
 public abstract class BaseActivity extends AppCompatActivity {
-    private Runnable mObserver;
-    long mostRecentlyModifiedBloomFileTime;
-    long mostRecentMarkerFileModifiedTime;
-    private Handler mHandler;
+    private BookDirectoryWatcher mWatcher;
+    private Toast mImportToast; // reused, so each message replaces the last at once
 
     // This is our "legacy" storage model which allowed us to gain
     // general file system access by user permission.
@@ -92,7 +91,8 @@ public abstract class BaseActivity extends AppCompatActivity {
         BloomReaderApplication.ReportAnalyticsWithLocationIfPossible(this, event, p);
     }
 
-    protected void moveBookFileToLocalFolderLegacy(boolean preserveFilesInOldDirectory, File bookFileToMove, File dest) {
+    // Returns true if the book was copied (whether or not we could delete the original).
+    protected boolean moveBookFileToLocalFolderLegacy(boolean preserveFilesInOldDirectory, File bookFileToMove, File dest) {
         // Originally we did a copy when preserveFilesInOldDirectory == true
         // and a renameTo when preserveFilesInOldDirectory == false.
         // But it turned out that in some cases, renameTo was failing where delete was succeeding.
@@ -118,13 +118,19 @@ public abstract class BaseActivity extends AppCompatActivity {
                 Log.e("moveOrCopyFromBloomDir", e.getMessage());
             }
         }
+        return fileCopied;
     }
 
-    protected void moveBookFileToLocalFolderSAF(boolean preserveFilesInOldDirectory, Uri bookOrShelfUri, File privateStorageFile) {
-        SAFUtilities.copyUriToFile(this, bookOrShelfUri, privateStorageFile);
+    // Returns true if the book was copied (whether or not we could delete the original).
+    protected boolean moveBookFileToLocalFolderSAF(boolean preserveFilesInOldDirectory, Uri bookOrShelfUri, File privateStorageFile) {
+        if (!SAFUtilities.copyUriToFile(this, bookOrShelfUri, privateStorageFile)) {
+            Log.e("moveOrCopyFromBloomDir", "Failed to copy " + bookOrShelfUri);
+            return false; // leave it where it is, so we can try again
+        }
         if (!preserveFilesInOldDirectory) {
             SAFUtilities.deleteUri(this, bookOrShelfUri);
         }
+        return true;
     }
 
     abstract protected void onNewOrUpdatedBook(String fullPath);
@@ -136,185 +142,61 @@ public abstract class BaseActivity extends AppCompatActivity {
 
     // Call in onPause if subclass calls startObserving in OnResume.
     protected void stopObserving() {
-        if (mHandler != null)
-            mHandler.removeCallbacks(mObserver);
+        if (mWatcher != null)
+            mWatcher.stop();
     }
 
     // If we import a bundle while the FileObserver is running, the user has already been notified
     // about these files, and we don't want another notification the next time onResume() is called.
     protected void resetFileObserver() {
-        mostRecentlyModifiedBloomFileTime = getLatestModifiedTimeAndFile().time;
+        if (mWatcher != null)
+            mWatcher.resetSnapshot();
     }
 
-    // We want to monitor for new and changed books. We ought to be able to get notifications
-    // efficiently and reliably using FileObserver, but as documented in
-    // https://issuetracker.google.com/issues/37065227 this does not work in Android 6 and possibly
-    // some versions of Android 7 for files modified by the MTP process.
-    // We work around this by doing two things.
-    // 1. We keep track of the most recent modify time of any file in the bloom book directory,
-    // and when it increases, we send a notification that the most recently modified file there
-    // has changed.
-    // However, we believe it is too costly to do this every second (measured as 5ms for a folder
-    // of only 25 books on a Nexus 5X, and presumably proportional to folder size). So,
-    // 2. We have arranged that bloom desktop, when it sends a new book via MTP, will also send
-    // a 'new' version of a tiny file called something.modified. Doing this will change the modify
-    // time on that file. So the task that runs every second only has to check to see whether
-    // this one file's modify time has changed. If so, it does the full check to see whether it
-    // can find a file more recently modified than the last one recorded, and if so sends the
-    // notification.
-    // There should be no contention for access to something.modified, because BloomReader never
-    // accesses or locks it; all it does is check its modify time.
+    // We want to monitor for new and changed books that Bloom desktop puts in the Bloom directory
+    // (see BookDirectoryWatcher).
     private void createFileObserver() {
-        if (mHandler == null) {
-            // Calling for the first time (on startup of this activity). Assume it's just read
-            // the files and doesn't need a notification; so we want to initialize
-            // the current most-recent-modify-time.
-            // If we already have mHandler, we don't need a new one, and do NOT want to
-            // update the modify time we already have, since we do want notifications
+        if (mWatcher == null) {
+            // Calling for the first time (on startup of this activity). The watcher assumes
+            // we've just read the files and don't need a notification.
+            // If we already have one, we don't want a new one, since we do want notifications
             // about any changes since last pause.
-            mostRecentlyModifiedBloomFileTime = getLatestModifiedTimeAndFile().time;
-            mHandler = new Handler();
+            mWatcher = new BookDirectoryWatcher(this, this::handleNewFileChanges);
         }
-        mObserver = () -> {
-            try {
-                if (haveLegacyStoragePermission(this)) {
-                    // must match what is written in AndroidDeviceUsbConnection.SendFile
-                    // Note that the file might not exist. By test, the value we get for
-                    // lastModified in that case is such that if it is later created,
-                    // we will interpret that as an update.
-                    String markerFilePath = BookCollection.getBloomDirectory().getPath() + "/" + BloomReaderApplication.SOMETHING_MODIFIED_FILE_NAME;
-                    long markerModified = new File(markerFilePath).lastModified();
-                    if (markerModified == mostRecentMarkerFileModifiedTime)
-                        return; // presume nothing changed
-                    mostRecentMarkerFileModifiedTime = markerModified;
-                    // Now look and see what actually changed (most recently)
-                    handleNewFileChanges();
-                } else if (SAFUtilities.hasPermissionToBloomDirectory(this)){
-                    // look for it using SAF
-                    Uri uriMarkerFile = SAFUtilities.fileUriFromDirectoryUri(
-                            this, SAFUtilities.getBloomDirectoryTreeUri(), BloomReaderApplication.SOMETHING_MODIFIED_FILE_NAME);
-                    long markerModified = IOUtilities.lastModified(this, uriMarkerFile);
-                    if (markerModified == mostRecentMarkerFileModifiedTime)
-                        return; // presume nothing changed
-                    mostRecentMarkerFileModifiedTime = markerModified;
-                    handleNewFileChanges();
-                }
-
-            } finally {
-                // We will run this task again a second later (unless stopObserving is called).
-                mHandler.postDelayed(mObserver, 1000);
-            }
-        };
-        // Start the loop.
-        mHandler.postDelayed(mObserver, 1000);
+        mWatcher.start();
     }
 
-    // Look for new changes to files in the Bloom directory and add/update the newest file to
-    // our private book collection.
-    // Specifically, it looks at the something.modified file to determine if there are changes.
-    protected void handleNewFileChanges() {
-        PathModifyTime newModifyData = getLatestModifiedTimeAndFile();
-        if (newModifyData.time > mostRecentlyModifiedBloomFileTime) {
-            mostRecentlyModifiedBloomFileTime = newModifyData.time;
-
-            // The file is in the Bloom directory. Move it to private book collection.
-            File privateStorageFile;
-            if (haveLegacyStoragePermission(this)) {
-                File newFile = new File(newModifyData.path);
-                privateStorageFile = new File(BookCollection.getLocalBooksDirectory(), newFile.getName());
-                moveBookFileToLocalFolderLegacy(
-                        // In this case, the file is being added in the context of a specific
-                        // channel of Bloom Reader. So there's no reason to keep it around for other channels.
-                        false,
-                        newFile,
-                        privateStorageFile);
-            } else {
-                // Must have SAF permission to the directory or we wouldn't be able
-                // to determine there is something new/updated.
-                String fileName = BookCollection.fixBloomd(IOUtilities.getFileNameFromUri(this, newModifyData.uri));
-                privateStorageFile = new File(BookCollection.getLocalBooksDirectory(), fileName);
-                moveBookFileToLocalFolderSAF(
-                        // In this case, the file is being added in the context of a specific
-                        // channel of Bloom Reader. So there's no reason to keep it around for other channels.
-                        false,
-                        newModifyData.uri,
-                        privateStorageFile);
-            }
-
-            onNewOrUpdatedBook(privateStorageFile.getAbsolutePath());
-        }
+    // Add the new and changed files in the Bloom directory to our private book collection.
+    protected void handleNewFileChanges(List<BookDirectoryWatcher.ChangedBookFile> changes) {
+        new ImportChangedBooksTask(this).execute(changes.toArray(new BookDirectoryWatcher.ChangedBookFile[0]));
     }
 
-    private PathModifyTime getLatestModifiedTimeAndFile() {
-        return haveLegacyStoragePermission(this) ?
-                getLatestModifiedTimeAndFile(BookCollection.getBloomDirectory())
-                : getLatestModifiedTimeAndFile(SAFUtilities.getBloomDirectoryTreeUri());
+    // Called (on the UI thread) by ImportChangedBooksTask as it starts to move each book.
+    // When there are several, we say which one we're on; the last one gets its own notice anyway.
+    protected void onImportProgress(String fileName, int current, int total) {
+        if (total <= 1)
+            return;
+        if (mImportToast == null)
+            mImportToast = Toast.makeText(this, "", Toast.LENGTH_SHORT);
+        mImportToast.setText(getString(R.string.adding_book, fileName));
+        mImportToast.show();
     }
 
-    private static PathModifyTime getLatestModifiedTimeAndFile(File dir) {
-        //long startTime = System.currentTimeMillis();
-        PathModifyTime result = new PathModifyTime();
-        String lastModFile = null;
-        long latestTime = 0;
-        File[] files = dir.listFiles();
-
-        // Fixing NullPointerException reported in Play console
-        if (files == null)
-        {
-            result.path = lastModFile;
-            result.time = latestTime;
-            return result;
-        }
-
-        for (File file : files) {
-            if (!file.isDirectory() && IOUtilities.isBloomPubFile(file.getName())) {
-                long modified = file.lastModified();
-                if (modified > latestTime) {
-                    latestTime = modified;
-                    lastModFile = file.getPath();
-                }
-            }
-        }
-        //long elapsedTime = System.currentTimeMillis() - startTime;
-        result.path = lastModFile;
-        result.time = latestTime;
-        return result;
+    // Called (on the UI thread) by ImportChangedBooksTask with the books it could not move.
+    // The watcher has already noted their current versions, so unless it forgets them it won't
+    // report them again until they change.
+    protected void onImportFailed(List<BookDirectoryWatcher.ChangedBookFile> failures) {
+        if (mWatcher == null)
+            return;
+        for (BookDirectoryWatcher.ChangedBookFile failure : failures)
+            mWatcher.forget(failure);
     }
 
-    // This overload uses SAF
-    private static PathModifyTime getLatestModifiedTimeAndFile(Uri dir) {
-        PathModifyTime result = new PathModifyTime();
-        final Context context = BloomReaderApplication.getBloomApplicationContext();
-        if (!SAFUtilities.hasPermission(context, dir))
-            return result;
-        //long startTime = System.currentTimeMillis();
-
-        final Uri[] lastModFile = {null};
-        final long[] latestTime = {0};
-
-        SAFUtilities.searchDirectoryForBooks(context, dir, new BookSearchListener() {
-            @Override
-            public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri) {
-                long modified = IOUtilities.lastModified(context, bookOrShelfUri);
-                if (modified > latestTime[0]) {
-                    latestTime[0] = modified;
-                    lastModFile[0] = bookOrShelfUri;
-                }
-            }
-
-            @Override
-            public void onFoundBundle(Uri bundleUri) {
-
-            }
-
-            @Override
-            public void onSearchComplete() {
-
-            }
-        });
-        result.uri = lastModFile[0];
-        result.time = latestTime[0];
-        return result;
+    // Called (on the UI thread) by ImportChangedBooksTask with all the books it moved.
+    // Subclasses that show a list of books can override this to update it just once.
+    protected void onNewOrUpdatedBooks(List<String> fullPaths) {
+        for (String fullPath : fullPaths)
+            onNewOrUpdatedBook(fullPath);
     }
 
     public static void playSoundFile(int id) {
@@ -326,10 +208,3 @@ public abstract class BaseActivity extends AppCompatActivity {
         mp.start();
     }
 }
-
-// We set path or uri, depending on whether we are using legacy storage or SAF
-class PathModifyTime {
-    public String path;
-    public Uri uri;
-    public long time;
-}
@@ -8,11 +8,23 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.sil.bloom.reader.models.BookCollection;
 import org.sil.bloom.reader.models.BookOrShelf;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BloomFileReader {
 
@@ -22,6 +34,16 @@ public class BloomFileReader {
     private File bookDirectory;
     private JSONObject metaProperties;
     private ZipFileOrUri fileOrUri;
+    // Files we have started reading into memory before the WebView asks for them (see prefetch()).
+    private final Map<String, Future<byte[]>> prefetched = new ConcurrentHashMap<>();
+    // Files the WebView has already asked for, which it's too late to prefetch.
+    private final Set<String> requested = ConcurrentHashMap.newKeySet();
+    private String bookIdentity; // see getBookIdentity()
+    private boolean ownsBookDirectory; // a folder of its own, to delete when we close the book
+
+    // Numbers the folders of readers that aren't reading the current book (see prepareFileOrUriForOtherBook()).
+    private static final AtomicInteger sOtherBookFolderCount = new AtomicInteger();
+    private static final Set<String> sClearedTempParents = ConcurrentHashMap.newKeySet();
 
     private static final String CURRENT_BOOK_FOLDER = "currentbook";
     private static final String THUMBNAIL_NAME_1 = "thumbnail.png";
@@ -55,6 +77,83 @@ public class BloomFileReader {
         return fileOrUri.tryGetFile(name);
     }
 
+    // Like tryGetFile, but streams the content straight from the book file rather than writing
+    // it out to the book folder first. Returns null if there is no such entry.
+    // If we served the same file recently, it will probably still be in BookAssetCache.
+    // If it was prefetched, we use that (waiting for it, if it's still being read).
+    // Either way, unless it's too big, it goes in the cache for next time.
+    public InputStream tryOpenStream(String name) {
+        requested.add(name);
+        BookAssetCache cache = BookAssetCache.getInstance();
+        String key = BookAssetCache.makeKey(getBookIdentity(), name);
+        byte[] bytes = cache.lookup(key);
+        if (bytes != null)
+            return new ByteArrayInputStream(bytes);
+        Future<byte[]> data = prefetched.remove(name);
+        if (data != null) {
+            try {
+                bytes = data.get();
+            } catch (ExecutionException e) {
+                // fall back to reading it directly
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (bytes == null && cache.isCacheable(fileOrUri.getSize(name)))
+            bytes = fileOrUri.tryReadBytes(name);
+        if (bytes == null)
+            return fileOrUri.tryOpenStream(name);
+        if (cache.isCacheable(bytes.length))
+            cache.put(key, bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    // Identifies this version of the book in BookAssetCache.
+    private String getBookIdentity() {
+        if (bookIdentity == null) {
+            long lastModified = bookUri == null ? new File(bloomFilePath).lastModified()
+                    : IOUtilities.lastModified(context, bookUri);
+            bookIdentity = (bookUri == null ? bloomFilePath : bookUri.toString()) + "|" + lastModified;
+        }
+        return bookIdentity;
+    }
+
+    // Start reading the named files into memory using the executor, so that by the time the
+    // WebView asks for them they are ready (or at least on the way). Each is only kept until it
+    // has been asked for once. Names not in the book are ignored. This is only worth doing when
+    // we have random access to the zip; otherwise everything was extracted when the book was opened.
+    public void prefetch(Collection<String> names, ExecutorService executor) {
+        if (!fileOrUri.isZipFile())
+            return;
+        BookAssetCache cache = BookAssetCache.getInstance();
+        for (final String name : names) {
+            if (requested.contains(name) || prefetched.containsKey(name) || fileOrUri.getSize(name) < 0
+                    || cache.contains(BookAssetCache.makeKey(getBookIdentity(), name)))
+                continue;
+            prefetched.put(name, executor.submit(() -> fileOrUri.tryReadBytes(name)));
+        }
+    }
+
+    // Forget any of these that were prefetched but never asked for.
+    public void dropPrefetched(Collection<String> names) {
+        for (String name : names) {
+            Future<byte[]> data = prefetched.remove(name);
+            if (data != null)
+                data.cancel(false);
+        }
+    }
+
+    // The names of the files at the top level of the book with the given extension
+    // (only known when we have random access to the zip).
+    public List<String> getTopLevelFilesWithExtension(String extension) {
+        return fileOrUri.getTopLevelNamesWithExtension(extension);
+    }
+
+    // The (uncompressed) size of the named entry, or -1 if there is no such entry.
+    public long getFileSize(String name) {
+        return fileOrUri.getSize(name);
+    }
+
     public File getHtmlFile() throws IOException{
         initialize();
         File index = fileOrUri.tryGetFile("index.htm");
@@ -108,7 +207,7 @@ public class BloomFileReader {
             // We must not unzip into the current book folder as that would interfere with the
             // current book (a race condition).
             if (this.bookDirectory == null) {
-                prepareFileOrUriForBook("tempAudioPath");
+                prepareFileOrUriForOtherBook("tempAudioPath");
             }
             final File bookHtmlFile = this.getHtmlFile();
             html = IOUtilities.FileToString(bookHtmlFile);
@@ -121,27 +220,61 @@ public class BloomFileReader {
         return html != null && html.contains(BOOK_AUDIO_MATCH) && audioFilesExist;
     }
 
-    public Uri getThumbnail(File thumbsDirectory) throws IOException {
-        Uri thumbUri = null;
-        // This function is called in a background thread for books that are not the current one
-        // being opened. It must not race for the same directory.
-        prepareFileOrUriForBook("tempBookPath");
-        String path = bloomFilePath == null ? bookUri.getPath() :bloomFilePath; // uri version is not a valid file path, but works for this.
-        String bookName = IOUtilities.stripBookFileExtension((new File(path)).getName());
-        File thumb = fileOrUri.tryGetFile(THUMBNAIL_NAME_1);
-        if (thumb == null)
-            thumb = fileOrUri.tryGetFile(THUMBNAIL_NAME_2);
-        if (thumb != null) {
-            String toPath = thumbsDirectory.getPath() + File.separator + bookName;
-            if (IOUtilities.copyFile(thumb.getPath(), toPath))
-                thumbUri = Uri.fromFile(new File(toPath));
-        } else {
-            String noThumbPath = thumbsDirectory + File.separator + BookCollection.NO_THUMBS_DIR + File.separator + bookName;
-            (new File(noThumbPath)).createNewFile();
+    // What the book list shows about a book, besides its name. See readBookCard().
+    public static class BookCard {
+        public byte[] thumbnail; // null if the book has none
+        public boolean hasAudio;
+        public String metaJson; // null if the book has no (readable) meta.json
+    }
+
+    // Get everything the book list needs from the book in a single pass: the thumbnail, whether it
+    // has audio, and the content of meta.json (which has the title and shelf tags). The zip is opened
+    // just once, and (unless we only have a URI we can't seek in) nothing is extracted to disk.
+    // This is called in a background thread for books that are not the current one being opened,
+    // so it must not use the current book folder.
+    public BookCard readBookCard() throws IOException {
+        prepareFileOrUriForOtherBook("tempBookPath");
+        try {
+            BookCard card = new BookCard();
+            card.thumbnail = fileOrUri.tryReadBytes(THUMBNAIL_NAME_1);
+            if (card.thumbnail == null)
+                card.thumbnail = fileOrUri.tryReadBytes(THUMBNAIL_NAME_2);
+            byte[] meta = fileOrUri.tryReadBytes(META_JSON_FILE);
+            if (meta != null)
+                card.metaJson = new String(meta, "UTF-8");
+            // Only worth reading the html if there are any audio files.
+            if (fileOrUri.hasFileWithPrefix("audio/")) {
+                String html = readHtmlForBookCard();
+                card.hasAudio = html != null && html.contains(BOOK_AUDIO_MATCH);
+            }
+            return card;
+        } finally {
+            closeFile();
         }
-        closeFile();
+    }
 
-        return thumbUri;
+    // The content of the book's html file, looking in the same places as getHtmlFile(),
+    // but without renaming anything.
+    private String readHtmlForBookCard() {
+        byte[] html = fileOrUri.tryReadBytes("index.htm");
+        if (html == null) {
+            String path = bloomFilePath == null ? bookUri.getPath() : bloomFilePath;
+            html = fileOrUri.tryReadBytes(IOUtilities.stripBookFileExtension(new File(path).getName()) + ".htm");
+        }
+        try {
+            if (html != null)
+                return new String(html, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        // Take the first htm file there is, as getHtmlFile() would.
+        for (String name : fileOrUri.getTopLevelNamesWithExtension(".htm")) {
+            html = fileOrUri.tryReadBytes(name);
+            if (html != null)
+                return new String(html, StandardCharsets.UTF_8);
+        }
+        File htmlFile = fileOrUri.findFirstWithExtension(".htm", null);
+        return htmlFile == null ? null : IOUtilities.FileToString(htmlFile);
     }
 
     public boolean getBooleanMetaProperty(String property, boolean defaultIfNotFound){
@@ -244,6 +377,9 @@ public class BloomFileReader {
         File toEmpty = bookDirectory;
         bookDirectory = null;
         IOUtilities.emptyDirectory(toEmpty);
+        if (ownsBookDirectory && toEmpty != null)
+            toEmpty.delete();
+        ownsBookDirectory = false;
         fileOrUri.close();
     }
 
@@ -251,6 +387,10 @@ public class BloomFileReader {
     // (or all at once if we only have a URI).
     private void prepareFileOrUriForBook(String toPath) throws IOException {
         setupBookDirectory(toPath);
+        openFileOrUri();
+    }
+
+    private void openFileOrUri() {
         if (bookUri == null) {
             fileOrUri = new ZipFileOrUri(new File(bloomFilePath), bookDirectory.getPath());
         } else {
@@ -258,6 +398,25 @@ public class BloomFileReader {
         }
     }
 
+    // Like prepareFileOrUriForBook(), but for reading a book that isn't the current one, in the
+    // background. Several of these may be going at once (e.g., SetBookListItemViewExtrasTask reads
+    // two books at a time), and emptying the folder one is extracting into would break another,
+    // so each gets a new folder inside the one named. (What's left in them after a crash is
+    // cleared the first time we use that folder.)
+    private void prepareFileOrUriForOtherBook(String parentPath) throws IOException {
+        File parent = context.getDir(parentPath, Context.MODE_PRIVATE);
+        synchronized (sClearedTempParents) {
+            if (sClearedTempParents.add(parentPath))
+                IOUtilities.emptyDirectory(parent);
+        }
+        bookDirectory = new File(parent, "book" + sOtherBookFolderCount.incrementAndGet());
+        IOUtilities.emptyDirectory(bookDirectory);
+        if (!bookDirectory.isDirectory() && !bookDirectory.mkdirs())
+            throw new IOException("Could not create " + bookDirectory.getPath());
+        ownsBookDirectory = true;
+        openFileOrUri();
+    }
+
     private void setupBookDirectory(String path){
         bookDirectory = context.getDir(path, Context.MODE_PRIVATE);
         IOUtilities.emptyDirectory(bookDirectory);
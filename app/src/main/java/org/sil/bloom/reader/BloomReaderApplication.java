@@ -52,6 +52,13 @@ public class BloomReaderApplication extends Application {
         setupAnalytics(this);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BookAssetCache.getInstance().onTrimMemory(level);
+        ThumbnailCache.getInstance().onTrimMemory(level);
+    }
+
     private static void setupAnalytics(Context context) {
         String writeKey = "FSepBapJtfOi3FfhsEWQjc2Dw0O3ixuY"; // Source BloomReaderTest
 
@@ -0,0 +1,93 @@
+package org.sil.bloom.reader;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// An app-wide, size-limited cache of the content of book files we have recently served to the
+// reader's WebView (see BloomFileReader.tryOpenStream()), so that things asked for repeatedly,
+// like a book's cover, stylesheets and fonts, or the pages of a book reopened soon after
+// reading it, don't have to be decompressed again.
+// Keys combine the identity of the book (its path or URI and its modification time, so a book
+// that has been updated doesn't get stale content) with the name of the file within the book.
+public class BookAssetCache extends LruCache<String, byte[]> {
+    // Never use more than this, however much memory the device has.
+    private static final int MAX_BUDGET = 32 * 1024 * 1024;
+    // Files bigger than this fraction of the budget (typically videos) are always streamed
+    // from the book, since caching them would push out too much else.
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private static BookAssetCache sInstance;
+
+    // Our own counts, since LruCache's also count the lookups prefetching does to see whether
+    // it has anything to do.
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public static synchronized BookAssetCache getInstance() {
+        if (sInstance == null) {
+            // An eighth of what the VM will let us have is the usual advice for a memory cache.
+            sInstance = new BookAssetCache((int) Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_BUDGET));
+        }
+        return sInstance;
+    }
+
+    private BookAssetCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    public static String makeKey(String bookIdentity, String name) {
+        return bookIdentity + "|" + name;
+    }
+
+    @Override
+    protected int sizeOf(String key, byte[] value) {
+        return value.length;
+    }
+
+    public boolean isCacheable(long size) {
+        return size >= 0 && size <= maxSize() / MAX_ENTRY_FRACTION;
+    }
+
+    // Look up something the WebView has asked for, counting hits and misses.
+    public byte[] lookup(String key) {
+        byte[] result = get(key);
+        if (result == null)
+            mMisses.incrementAndGet();
+        else
+            mHits.incrementAndGet();
+        return result;
+    }
+
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ROOT, "%d hits, %d misses, %d of %d bytes used",
+                getHitCount(), getMissCount(), size(), maxSize());
+    }
+
+    // Give back memory when the system asks (see BloomReaderApplication.onTrimMemory()).
+    // While we're merely hidden we keep everything, since the user may well come back to the
+    // same book; once we're in the background list, the cache is just making it more likely
+    // we'll be killed.
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            evictAll();
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(maxSize() / 4);
+        }
+    }
+}
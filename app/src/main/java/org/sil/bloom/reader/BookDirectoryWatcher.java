@@ -0,0 +1,297 @@
+package org.sil.bloom.reader;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import org.sil.bloom.reader.models.BookCollection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Watches the Bloom directory, where Bloom desktop puts books it sends over USB, and reports every
+// book file that is new or has changed.
+// We ought to be able to get notifications efficiently and reliably using FileObserver, but as
+// documented in https://issuetracker.google.com/issues/37065227 this does not work in Android 6
+// and possibly some versions of Android 7 for files modified by the MTP process. So we also poll:
+// Bloom desktop, when it sends a new book, also sends a 'new' version of a tiny file called
+// something.modified, so a poll only has to check that one file's modify time. (There should be no
+// contention for access to something.modified, because BloomReader never accesses or locks it.)
+// Where FileObserver should work, and once it has shown it does by telling us about a change, we
+// only poll occasionally, as a safety net. Until then (and always on older versions) we poll every
+// second while things are happening, backing off when nothing has changed for a while.
+// When something may have changed, we compare the directory with a snapshot (file and modify time)
+// of what it held last time, so we can report everything that changed, not just the newest file.
+// If FileObserver tells us which file changed, we only look at that one.
+// All the work is done on a background thread; the listener is called on the UI thread.
+public class BookDirectoryWatcher {
+    public interface Listener {
+        void onBookFilesChanged(List<ChangedBookFile> changes);
+    }
+
+    // We set path or uri, depending on whether we are using legacy storage or SAF
+    public static class ChangedBookFile {
+        public final String path;
+        public final Uri uri;
+        public final long lastModified;
+
+        ChangedBookFile(String path, Uri uri, long lastModified) {
+            this.path = path;
+            this.uri = uri;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final long MIN_POLL_INTERVAL_MS = 1000;
+    private static final long MAX_POLL_INTERVAL_MS = 5000;
+    // How long things must be quiet before we start to poll less often.
+    private static final long QUIET_BEFORE_BACKOFF_MS = 30000;
+    // With FileObserver working, polling is only in case we miss an event.
+    private static final long SAFETY_NET_POLL_INTERVAL_MS = 15000;
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mThread;
+    // Set to null (on the UI thread) when we stop, so volatile.
+    private volatile Handler mHandler;
+    private volatile FileObserver mFileObserver;
+    private final Runnable mPoll = this::poll;
+
+    // Everything below is only used on mThread.
+    // path (legacy) or URI string (SAF) -> modify time, for every book file we know about
+    private final Map<String, Long> mSnapshot = new HashMap<>();
+    private Boolean mSnapshotIsLegacy; // null until we have taken a snapshot
+    private long mMarkerModified;
+    private Uri mMarkerUri; // SAF only, once we've found it
+    private long mPollInterval = MIN_POLL_INTERVAL_MS;
+    private long mLastChangeTime;
+    // Whether mFileObserver has told us about anything yet. Even where it should work, some
+    // devices may not send events for files written by MTP, so we don't rely on it until it has.
+    private boolean mFileObserverHasFired;
+
+    public BookDirectoryWatcher(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    // Start (or resume) watching. The first time, we assume whoever started us has just read the
+    // files, so we take a snapshot without reporting anything. After that, we do want to hear
+    // about any changes made while we were stopped.
+    public synchronized void start() {
+        if (mThread != null)
+            return;
+        mThread = new HandlerThread("BookDirectoryWatcher", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(() -> {
+            if (mSnapshotIsLegacy == null)
+                takeSnapshot();
+        });
+        startFileObserver();
+        mPollInterval = MIN_POLL_INTERVAL_MS;
+        mLastChangeTime = System.currentTimeMillis();
+        mHandler.postDelayed(mPoll, MIN_POLL_INTERVAL_MS);
+    }
+
+    public synchronized void stop() {
+        if (mThread == null)
+            return;
+        if (mFileObserver != null) {
+            mFileObserver.stopWatching();
+            mFileObserver = null;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    // Forget about any changes so far (e.g., because we just imported everything anyway).
+    public synchronized void resetSnapshot() {
+        if (mHandler != null)
+            mHandler.post(this::takeSnapshot);
+        else
+            mSnapshotIsLegacy = null; // start() will take a new one
+    }
+
+    // Forget what we know about this file (e.g., because we couldn't import it), so the next
+    // time we look at the directory we report it again.
+    public synchronized void forget(ChangedBookFile file) {
+        String key = file.path != null ? file.path : file.uri.toString();
+        if (mHandler != null)
+            mHandler.post(() -> mSnapshot.remove(key));
+        else
+            mSnapshot.remove(key); // not watching, so nothing else is using it
+    }
+
+    private boolean usingLegacyStorage() {
+        return BaseActivity.haveLegacyStoragePermission(mContext);
+    }
+
+    // FileObserver works on the path of the directory, so it's no use with only SAF permission.
+    private void startFileObserver() {
+        if (!usingLegacyStorage())
+            return;
+        final File dir = BookCollection.getBloomDirectory();
+        mFileObserver = new FileObserver(dir.getPath(), FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String name) {
+                Handler handler = mHandler;
+                if (handler == null || name == null)
+                    return;
+                handler.post(() -> {
+                    if (name.equals(BloomReaderApplication.SOMETHING_MODIFIED_FILE_NAME)) {
+                        mFileObserverHasFired = true;
+                        checkAll();
+                    } else if (IOUtilities.isBloomPubFile(name)) {
+                        mFileObserverHasFired = true;
+                        checkOneFile(new File(dir, name));
+                    }
+                });
+            }
+        };
+        mFileObserver.startWatching();
+    }
+
+    private boolean fileObserverIsReliable() {
+        return mFileObserver != null && mFileObserverHasFired
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    private void poll() {
+        try {
+            long markerModified;
+            if (usingLegacyStorage()) {
+                // must match what is written in AndroidDeviceUsbConnection.SendFile
+                // Note that the file might not exist. By test, the value we get for
+                // lastModified in that case is such that if it is later created,
+                // we will interpret that as an update.
+                markerModified = new File(BookCollection.getBloomDirectory(),
+                        BloomReaderApplication.SOMETHING_MODIFIED_FILE_NAME).lastModified();
+            } else if (SAFUtilities.hasPermissionToBloomDirectory(mContext)) {
+                // Finding the file in the directory is a lot more work than asking when it
+                // was modified, so we remember where it is.
+                if (mMarkerUri == null)
+                    mMarkerUri = SAFUtilities.fileUriFromDirectoryUri(
+                            mContext, SAFUtilities.getBloomDirectoryTreeUri(), BloomReaderApplication.SOMETHING_MODIFIED_FILE_NAME);
+                markerModified = mMarkerUri == null ? 0 : DocumentMetadata.queryLastModified(mContext, mMarkerUri);
+                if (markerModified == 0)
+                    mMarkerUri = null; // gone, or never there; look again next time
+            } else {
+                return;
+            }
+            if (markerModified != mMarkerModified) {
+                mMarkerModified = markerModified;
+                // Now look and see what actually changed
+                checkAll();
+            }
+        } finally {
+            scheduleNextPoll();
+        }
+    }
+
+    private void scheduleNextPoll() {
+        Handler handler = mHandler;
+        if (handler == null)
+            return; // stopped
+        if (fileObserverIsReliable()) {
+            mPollInterval = SAFETY_NET_POLL_INTERVAL_MS;
+        } else if (System.currentTimeMillis() - mLastChangeTime < QUIET_BEFORE_BACKOFF_MS) {
+            mPollInterval = MIN_POLL_INTERVAL_MS;
+        } else {
+            mPollInterval = Math.min(mPollInterval * 2, MAX_POLL_INTERVAL_MS);
+        }
+        handler.removeCallbacks(mPoll);
+        handler.postDelayed(mPoll, mPollInterval);
+    }
+
+    private void noteActivity() {
+        // Something is happening; more may follow soon.
+        mLastChangeTime = System.currentTimeMillis();
+        if (mPollInterval > MIN_POLL_INTERVAL_MS && !fileObserverIsReliable()) {
+            mPollInterval = MIN_POLL_INTERVAL_MS;
+            scheduleNextPoll();
+        }
+    }
+
+    // What the directory holds now.
+    private Map<String, Long> readDirectory(boolean legacy) {
+        Map<String, Long> result = new HashMap<>();
+        if (legacy) {
+            File[] files = BookCollection.getBloomDirectory().listFiles();
+            // Fixing NullPointerException reported in Play console
+            if (files == null)
+                return result;
+            for (File file : files) {
+                if (!file.isDirectory() && IOUtilities.isBloomPubFile(file.getName()))
+                    result.put(file.getPath(), file.lastModified());
+            }
+        } else {
+            Uri dir = SAFUtilities.getBloomDirectoryTreeUri();
+            if (!SAFUtilities.hasPermission(mContext, dir))
+                return result;
+            for (Map.Entry<Uri, Long> entry : SAFUtilities.getBookModifiedTimes(mContext, dir).entrySet())
+                result.put(entry.getKey().toString(), entry.getValue());
+        }
+        return result;
+    }
+
+    private void takeSnapshot() {
+        boolean legacy = usingLegacyStorage();
+        mSnapshot.clear();
+        mSnapshot.putAll(readDirectory(legacy));
+        mSnapshotIsLegacy = legacy;
+    }
+
+    // Compare the whole directory with the snapshot, and report what is new or changed.
+    private void checkAll() {
+        boolean legacy = usingLegacyStorage();
+        if (mSnapshotIsLegacy == null || mSnapshotIsLegacy != legacy) {
+            // What we have is for the other kind of storage (or nothing); we can't compare.
+            takeSnapshot();
+            return;
+        }
+        Map<String, Long> current = readDirectory(legacy);
+        List<ChangedBookFile> changes = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : current.entrySet()) {
+            Long known = mSnapshot.get(entry.getKey());
+            if (known == null || known.longValue() != entry.getValue()) {
+                changes.add(legacy
+                        ? new ChangedBookFile(entry.getKey(), null, entry.getValue())
+                        : new ChangedBookFile(null, Uri.parse(entry.getKey()), entry.getValue()));
+            }
+        }
+        mSnapshot.clear();
+        mSnapshot.putAll(current);
+        report(changes);
+    }
+
+    // FileObserver told us this file was written.
+    private void checkOneFile(File file) {
+        if (!Boolean.TRUE.equals(mSnapshotIsLegacy) || !file.isFile())
+            return;
+        long modified = file.lastModified();
+        Long known = mSnapshot.put(file.getPath(), modified);
+        if (known != null && known == modified)
+            return;
+        List<ChangedBookFile> changes = new ArrayList<>();
+        changes.add(new ChangedBookFile(file.getPath(), null, modified));
+        report(changes);
+    }
+
+    private void report(List<ChangedBookFile> changes) {
+        if (changes.isEmpty())
+            return;
+        noteActivity();
+        mMainHandler.post(() -> mListener.onBookFilesChanged(changes));
+    }
+}
@@ -3,20 +3,75 @@ package org.sil.bloom.reader;
 import android.app.Activity;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.sil.bloom.reader.IOUtilities.BLOOM_BUNDLE_FILE_EXTENSION;
 import static org.sil.bloom.reader.IOUtilities.BOOKSHELF_FILE_EXTENSION;
 import static org.sil.bloom.reader.IOUtilities.ENCODED_FILE_EXTENSION;
 
 // This class implements the "Find books on this device" command for Android pre-11.
-public class BookFinderTask extends AsyncTask<Void, Void, Void> {
+// A phone may have tens of thousands of media files, so rather than recursively listing the whole
+// storage tree on one thread, we keep a queue of directories to look in and let a few threads work
+// through it (flash storage handles a few requests at once much better than one at a time).
+// Where java.nio.file is available (Android 8 and later), one attribute read per entry tells us
+// whether it's a file or a directory; otherwise it takes a stat for each question.
+// We skip directories that never hold books the user put there (hidden ones, including thumbnail
+// caches, and apps' private data), and we pass what we find to the listener in batches, rather
+// than a trip to the UI thread for every book.
+public class BookFinderTask extends AsyncTask<Void, BookFinderTask.Found, Void> {
+    private static final String TAG = "BookFinderTask";
+    private static final int THREAD_COUNT = 3;
+    // How often to pass on what we've found so far.
+    private static final long BATCH_INTERVAL_MS = 250;
+
+    // Relative to a storage root, lower case. (Android/media, where e.g. WhatsApp keeps documents
+    // people send, is NOT pruned.)
+    private static final Set<String> PRUNED_PATHS = new HashSet<>(Arrays.asList(
+            "android/data", "android/obb", "lost.dir"));
+
+    // A book, shelf or bundle we found.
+    static class Found {
+        final File file;
+        final boolean isBundle;
+
+        Found(File file, boolean isBundle) {
+            this.file = file;
+            this.isBundle = isBundle;
+        }
+    }
 
     private final WeakReference<Activity> activityRef;
     private final BookSearchListener bookSearchListener;
 
+    // Used while scanning.
+    private ExecutorService executor;
+    private final AtomicInteger pendingDirectories = new AtomicInteger();
+    private final Object allDone = new Object();
+    private final List<Found> batch = new ArrayList<>();
+    private long lastBatchTime;
+
     public BookFinderTask(Activity activity, BookSearchListener bookSearchListener) {
         // See https://stackoverflow.com/questions/44309241/warning-this-asynctask-class-should-be-static-or-leaks-might-occur/46166223#46166223
         this.activityRef = new WeakReference<>(activity);
@@ -28,62 +83,154 @@ public class BookFinderTask extends AsyncTask<Void, Void, Void> {
         Activity activity = activityRef.get();
         if (activity == null)
             return null;
-
-        scan(IOUtilities.removablePublicStorageRoot(activity));
-        scan(IOUtilities.nonRemovablePublicStorageRoot(activity));
-
+        File removableRoot = IOUtilities.removablePublicStorageRoot(activity);
+        File nonRemovableRoot = IOUtilities.nonRemovablePublicStorageRoot(activity);
+        activity = null; // don't keep it from being collected while we scan
+
+        executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        lastBatchTime = SystemClock.elapsedRealtime();
+        try {
+            if (removableRoot != null)
+                queueDirectory(removableRoot, removableRoot);
+            if (nonRemovableRoot != null && !nonRemovableRoot.equals(removableRoot))
+                queueDirectory(nonRemovableRoot, nonRemovableRoot);
+            synchronized (allDone) {
+                while (pendingDirectories.get() > 0 && !isCancelled())
+                    allDone.wait(BATCH_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            // cancel(true)
+        } finally {
+            executor.shutdownNow();
+        }
+        flushBatch(true);
         return null;
     }
 
+    @Override
+    protected void onProgressUpdate(Found... found) {
+        if (bookSearchListener == null)
+            return;
+        for (Found f : found) {
+            if (f.isBundle)
+                bookSearchListener.onFoundBundle(Uri.fromFile(f.file));
+            else
+                bookSearchListener.onFoundBookOrShelf(f.file, Uri.fromFile(f.file));
+        }
+    }
+
     @Override
     public void onPostExecute(Void v) {
         if (bookSearchListener != null)
             bookSearchListener.onSearchComplete();
     }
 
-    private void scan(File root) {
-        if (root != null) {
-            File[] list = root.listFiles();
-
-            if (list == null)
-                return;
-
-            for (File f : list) {
-//                Log.d("BookSearch", f.getName() + " is dir: "
-//                        + Boolean.toString(f.isDirectory()) + " is file: " + Boolean.toString(f.isFile()));
-
-                if (f.isFile()) {
-                    if (f.getName().endsWith(BLOOM_BUNDLE_FILE_EXTENSION) ||
-                            f.getName().endsWith(BLOOM_BUNDLE_FILE_EXTENSION + ENCODED_FILE_EXTENSION))
-                        foundNewBundle(f);
-                    else if (IOUtilities.isBloomPubFile(f.getName(), true) ||
-                             f.getName().endsWith(BOOKSHELF_FILE_EXTENSION))
-                        foundNewBookOrShelf(f);
-                }
-                else if (f.isDirectory()) {
-                    scan(f);
+    private void queueDirectory(final File root, final File directory) {
+        pendingDirectories.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    if (!isCancelled() && activityRef.get() != null)
+                        scanDirectory(root, directory);
+                } finally {
+                    directoryDone();
                 }
+            });
+        } catch (RuntimeException e) {
+            // The executor has been shut down (we were cancelled).
+            directoryDone();
+        }
+    }
+
+    private void directoryDone() {
+        flushBatch(false);
+        if (pendingDirectories.decrementAndGet() == 0) {
+            synchronized (allDone) {
+                allDone.notifyAll();
             }
         }
     }
 
-    private void foundNewBookOrShelf(final File bookOrShelfFile) {
-        Activity activity = activityRef.get();
-        if (activity != null) {
-            activity.runOnUiThread(() -> {
-                if (bookSearchListener != null)
-                    bookSearchListener.onFoundBookOrShelf(bookOrShelfFile, Uri.fromFile(bookOrShelfFile));
-            });
+    // Look at what is in one directory: note books, and queue subdirectories.
+    private void scanDirectory(File root, File directory) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NioLister.scan(this, root, directory);
+            return;
+        }
+        File[] list = directory.listFiles();
+        if (list == null)
+            return;
+        for (File f : list) {
+            if (f.isFile())
+                checkFile(f);
+            else if (f.isDirectory())
+                checkDirectory(root, f);
         }
     }
 
-    private void foundNewBundle(final File bundleFile) {
-        Activity activity = activityRef.get();
-        if (activity != null) {
-            activity.runOnUiThread(() -> {
-                if (bookSearchListener != null)
-                    bookSearchListener.onFoundBundle(Uri.fromFile(bundleFile));
-            });
+    private void checkFile(File f) {
+        String name = f.getName();
+        if (name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION) ||
+                name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION + ENCODED_FILE_EXTENSION))
+            found(new Found(f, true));
+        else if (IOUtilities.isBloomPubFile(name, true) ||
+                name.endsWith(BOOKSHELF_FILE_EXTENSION))
+            found(new Found(f, false));
+    }
+
+    private void checkDirectory(File root, File dir) {
+        if (dir.getName().startsWith("."))
+            return; // hidden, e.g. .thumbnails; not where anyone puts books
+        String rootPath = root.getPath();
+        String path = dir.getPath();
+        if (path.length() > rootPath.length() + 1
+                && PRUNED_PATHS.contains(path.substring(rootPath.length() + 1).toLowerCase(Locale.ROOT)))
+            return;
+        queueDirectory(root, dir);
+    }
+
+    private void found(Found found) {
+        synchronized (batch) {
+            batch.add(found);
+        }
+    }
+
+    // Pass on what we've found, if it's been a while since we last did (or if we've finished).
+    private void flushBatch(boolean force) {
+        Found[] toPublish;
+        synchronized (batch) {
+            long now = SystemClock.elapsedRealtime();
+            if (batch.isEmpty() || (!force && now - lastBatchTime < BATCH_INTERVAL_MS))
+                return;
+            lastBatchTime = now;
+            toPublish = batch.toArray(new Found[0]);
+            batch.clear();
+        }
+        publishProgress(toPublish);
+    }
+
+    // Kept separate so that older Androids never have to load the java.nio.file classes.
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private static class NioLister {
+        static void scan(BookFinderTask task, File root, File directory) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath())) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        // Not following links also means a link can't send us round in circles.
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attributes.isRegularFile())
+                        task.checkFile(entry.toFile());
+                    else if (attributes.isDirectory())
+                        task.checkDirectory(root, entry.toFile());
+                }
+            } catch (IOException | RuntimeException e) {
+                // e.g., no permission to list it; the old way just got null from listFiles().
+                Log.d(TAG, "Could not list " + directory + ": " + e.getMessage());
+            }
         }
     }
 }
@@ -27,7 +27,8 @@ import java.util.List;
  *
  */
 
-public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHolder> implements View.OnClickListener, View.OnLongClickListener {
+public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHolder>
+        implements View.OnClickListener, View.OnLongClickListener, BookCollection.FilteredListObserver {
 
     private BookCollection bookCollection;
     private BookClickListener bookClickListener;
@@ -66,6 +67,12 @@ public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHo
         AdjustItemAppearance(holder);
     }
 
+    // Don't spend time getting the thumbnail for a row that is no longer on screen.
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        SetBookListItemViewExtrasTask.cancelFor(holder);
+    }
+
     ColorStateList originalColors;
 
     private void AdjustItemAppearance(ViewHolder holder){
@@ -170,6 +177,17 @@ public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHo
         return false;
     }
 
+    // Called as BookCollection.mergeIntoFilteredList() adds and removes books while loading.
+    @Override
+    public void onItemRemoved(int position) {
+        notifyItemRemoved(position);
+    }
+
+    @Override
+    public void onItemInserted(int position) {
+        notifyItemInserted(position);
+    }
+
     public List<BookOrShelf> getSelectedItems(){
         return selectedItems;
     }
@@ -268,6 +286,7 @@ public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHo
         public ImageView imageView;
         public ImageView speakerIcon;
         public BookOrShelf bookOrShelf;
+        SetBookListItemViewExtrasTask extrasTask; // still getting the thumbnail etc., if not null
 
         public ViewHolder(LinearLayout linearLayout) {
             super(linearLayout);
@@ -0,0 +1,245 @@
+package org.sil.bloom.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+// A minimal read-only zip reader over a FileChannel, for when we can't give java.util.zip.ZipFile
+// a path, typically because all we have is a content URI (see ZipFileOrUri). Reading a ZipInputStream
+// from the URI means decompressing everything up to the entry we want, so we used to extract the
+// whole book up front. With a seekable channel we can do what ZipFile does: read the central
+// directory at the end of the file once, then go straight to each entry when it is wanted.
+// It handles what Bloom produces: stored and deflated entries, no encryption, no ZIP64.
+// Reads use absolute positions, so entries can be read on several threads at once.
+public class ChannelZipFile implements Closeable {
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+    public static class Entry {
+        public final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private final FileChannel channel;
+    private final Closeable owner; // closed along with the channel, e.g., a ParcelFileDescriptor
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    // Throws (and the caller should fall back to reading the zip sequentially) if the channel
+    // isn't seekable or this isn't a zip file we understand.
+    public ChannelZipFile(FileChannel channel, Closeable owner) throws IOException {
+        this.channel = channel;
+        this.owner = owner;
+        readCentralDirectory();
+    }
+
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    public List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public InputStream getInputStream(Entry entry) throws IOException {
+        ByteBuffer header = readFully(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new ZipException("Bad local header for " + entry.name);
+        long dataStart = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                return new RangeInputStream(dataStart, entry.compressedSize, false);
+            case ZipEntry.DEFLATED:
+                // Like ZipFile, give the inflater an extra zero byte at the end, which it
+                // sometimes needs in 'nowrap' mode.
+                final Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(new RangeInputStream(dataStart, entry.compressedSize, true),
+                        inflater, 8192) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        if (!closed) {
+                            closed = true;
+                            inflater.end();
+                        }
+                        super.close();
+                    }
+                };
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (owner != null)
+                owner.close();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE)
+            throw new ZipException("File too short to be a zip file");
+        // The end-of-central-directory record is at the very end, unless there's a comment.
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = readFully(fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+            throw new ZipException("No central directory found");
+        int entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL)
+            throw new ZipException("ZIP64 is not supported");
+        if (directoryOffset + directorySize > fileSize)
+            throw new ZipException("Central directory is past the end of the file");
+
+        ByteBuffer directory = readFully(directoryOffset, (int) directorySize);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_DIRECTORY_HEADER_SIZE > directorySize
+                    || directory.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE)
+                throw new ZipException("Bad central directory entry");
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long size = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+            if (position + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength > directorySize)
+                throw new ZipException("Bad central directory entry");
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + CENTRAL_DIRECTORY_HEADER_SIZE);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            if (!isSafeEntryName(name))
+                throw new ZipException("Invalid zip entry name: " + name);
+            entries.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    // Entries are extracted under their own names, so a name that would take us out of the
+    // folder we extract to (like audio/../../databases/x) means the book is not to be trusted.
+    // (ZipFile rejects such names too, from Android 14.)
+    static boolean isSafeEntryName(String name) {
+        if (name.startsWith("/") || name.startsWith("\\"))
+            return false;
+        for (String segment : name.split("[/\\\\]")) {
+            if (segment.equals(".."))
+                return false;
+        }
+        return true;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0)
+                throw new ZipException("Unexpected end of zip file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Reads a range of the channel, optionally followed by one extra zero byte.
+    private class RangeInputStream extends InputStream {
+        private long position;
+        private long remaining;
+        private boolean extraZero;
+
+        RangeInputStream(long start, long length, boolean addExtraZero) {
+            position = start;
+            remaining = length;
+            extraZero = addExtraZero;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            if (remaining <= 0) {
+                if (!extraZero)
+                    return -1;
+                extraZero = false;
+                bytes[offset] = 0;
+                return 1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining));
+            int count = channel.read(buffer, position);
+            if (count < 0)
+                throw new ZipException("Unexpected end of zip file");
+            position += count;
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            long skipped = Math.max(0, Math.min(count, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.sil.bloom.reader;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The name, size and modified time of the SAF documents (books in BloomExternal or the Bloom
+// directory) we've asked about. Binding one such book in the list used to ask its provider for its
+// modified time several times (for the thumbnail, whether it has audio, whether it's valid...),
+// each a query for every column, so scrolling through books on an SD card made hundreds of
+// binder calls. Now the first question about a document lists its directory, which is one query
+// whatever the number of books there, and we remember the answer for all of them. Listings made
+// for other reasons (see SAFTreeSnapshot) are remembered too.
+// What we remember is only used for a little while, and is forgotten when we delete a document,
+// so a book Bloom desktop replaces is soon seen to have changed. Anything that must know the
+// current time of a file (like BookDirectoryWatcher) should use queryLastModified().
+public class DocumentMetadata {
+    private static final String TAG = "DocumentMetadata";
+    private static final long MAX_AGE_MS = 60000;
+    private static final String EXTERNAL_STORAGE_AUTHORITY = "com.android.externalstorage.documents";
+
+    public static class Info {
+        public final String name;
+        public final long size; // 0 if the provider doesn't say
+        public final long lastModified; // 0 if the provider doesn't say
+        final long fetchedAt; // SystemClock.elapsedRealtime()
+
+        Info(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fetchedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static final String[] COLUMNS = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+
+    // keyed by uri.toString()
+    private static final Map<String, Info> sInfo = new ConcurrentHashMap<>();
+
+    // What we know about the document, if it is one in a tree we have permission for
+    // (otherwise null, as it is if the provider can't tell us).
+    public static Info get(Context context, Uri uri) {
+        if (!isTreeDocumentUri(uri))
+            return null;
+        Info info = sInfo.get(uri.toString());
+        if (info != null && SystemClock.elapsedRealtime() - info.fetchedAt <= MAX_AGE_MS)
+            return info;
+        ContentResolver resolver = context.getContentResolver();
+        if (resolver == null) // Play console showed us this could be null somehow
+            return null;
+        if (listSiblings(resolver, uri)) {
+            info = sInfo.get(uri.toString());
+            if (info != null)
+                return info;
+        }
+        return querySingle(resolver, uri);
+    }
+
+    // Ask the provider, not what we remember (but remember what it says).
+    public static long queryLastModified(Context context, Uri uri) {
+        if (isTreeDocumentUri(uri)) {
+            Info info = querySingle(context.getContentResolver(), uri);
+            return info == null ? 0 : info.lastModified;
+        }
+        try (Cursor cursor = context.getContentResolver().query(uri,
+                new String[]{DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0))
+                return cursor.getLong(0);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    // Called with what we found out some other way, e.g. by listing a directory.
+    public static void remember(Uri uri, String name, long size, long lastModified) {
+        sInfo.put(uri.toString(), new Info(name, size, lastModified));
+    }
+
+    public static void forget(Uri uri) {
+        if (uri != null)
+            sInfo.remove(uri.toString());
+    }
+
+    public static void forgetAll() {
+        sInfo.clear();
+    }
+
+    // Something like content://com.android.externalstorage.documents/tree/primary%3ABloom/document/primary%3ABloom%2Fbook.bloompub
+    // (DocumentsContract.isDocumentUri() would ask the package manager.)
+    static boolean isTreeDocumentUri(Uri uri) {
+        if (uri == null || !"content".equals(uri.getScheme()))
+            return false;
+        List<String> segments = uri.getPathSegments();
+        return segments.size() == 4 && "tree".equals(segments.get(0)) && "document".equals(segments.get(2));
+    }
+
+    // List the directory the document is in, and remember all its files. Returns false if we
+    // can't tell what the directory is. Document ids are meant to be opaque, but those of the
+    // external storage provider (which is where our books are) are paths, like primary:Bloom/book.bloompub.
+    private static boolean listSiblings(ContentResolver resolver, Uri uri) {
+        String treeId = DocumentsContract.getTreeDocumentId(uri);
+        String documentId = DocumentsContract.getDocumentId(uri);
+        if (!EXTERNAL_STORAGE_AUTHORITY.equals(uri.getAuthority()))
+            return false;
+        int lastSlash = documentId.lastIndexOf('/');
+        if (lastSlash < treeId.length() || !documentId.startsWith(treeId))
+            return false; // not inside the tree (at least, not the way we expect)
+        String parentId = documentId.substring(0, lastSlash);
+        Uri treeUri = DocumentsContract.buildTreeDocumentUri(uri.getAuthority(), treeId);
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, parentId);
+        try (Cursor c = resolver.query(childrenUri, COLUMNS, null, null, null)) {
+            if (c == null)
+                return false;
+            while (c.moveToNext()) {
+                remember(DocumentsContract.buildDocumentUriUsingTree(treeUri, c.getString(0)),
+                        c.getString(1), c.isNull(2) ? 0 : c.getLong(2), c.isNull(3) ? 0 : c.getLong(3));
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not list " + childrenUri + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static Info querySingle(ContentResolver resolver, Uri uri) {
+        if (resolver == null)
+            return null;
+        sInfo.remove(uri.toString()); // whatever happens, it's out of date
+        try (Cursor c = resolver.query(uri, COLUMNS, null, null, null)) {
+            if (c == null || !c.moveToFirst())
+                return null;
+            Info info = new Info(c.getString(1), c.isNull(2) ? 0 : c.getLong(2), c.isNull(3) ? 0 : c.getLong(3));
+            sInfo.put(uri.toString(), info);
+            return info;
+        } catch (Exception e) {
+            // e.g., it's gone, or we no longer have permission
+            Log.e(TAG, "Could not query " + uri + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.sil.bloom.reader;
+
+import android.os.AsyncTask;
+
+import org.sil.bloom.reader.models.BookCollection;
+import org.sil.bloom.reader.models.BookOrShelf;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    While loading the library we only check the central directory of each book
+    (IOUtilities.VALIDATE_CENTRAL_DIRECTORY), since decompressing every entry of hundreds of
+    audio-heavy books takes minutes. This task does the full check afterwards, in the background,
+    for any book that hasn't already passed it. Books that pass are remembered, so normally this
+    only does real work for books that are new or changed since the last run.
+    Books that fail are renamed and removed from the list, just as they would have been
+    if we had found the problem while loading.
+ */
+public class FullValidationTask extends AsyncTask<Void, Void, List<BookOrShelf>> {
+    private final WeakReference<MainActivity> mainActivityRef;
+    private final BookCollection bookCollection;
+
+    public FullValidationTask(MainActivity mainActivity, BookCollection bookCollection) {
+        this.mainActivityRef = new WeakReference<>(mainActivity);
+        this.bookCollection = bookCollection;
+    }
+
+    @Override
+    protected List<BookOrShelf> doInBackground(Void... v) {
+        List<BookOrShelf> invalidBooks = new ArrayList<>();
+        for (BookOrShelf book : bookCollection.getAllBooksAndShelves()) {
+            if (isCancelled())
+                break;
+            // Books we only have a URI for are read in a single sequential pass anyway, which
+            // already checks everything.
+            if (book.isShelf() || book.uri != null || book.specialBehavior != null)
+                continue;
+            File bookFile = new File(book.pathOrUri);
+            if (!bookFile.exists())
+                continue; // deleted since we loaded it
+            if (!IOUtilities.isValidZipFile(bookFile, IOUtilities.CHECK_BLOOMPUB, null, IOUtilities.VALIDATE_FULL))
+                invalidBooks.add(book);
+        }
+        return invalidBooks;
+    }
+
+    @Override
+    protected void onPostExecute(List<BookOrShelf> invalidBooks) {
+        MainActivity mainActivity = mainActivityRef.get();
+        if (invalidBooks.isEmpty() || mainActivity == null || mainActivity.isFinishing())
+            return;
+        for (BookOrShelf book : invalidBooks)
+            bookCollection.removeInvalidBook(mainActivity, book);
+        mainActivity.mBookListAdapter.notifyDataSetChanged();
+    }
+}
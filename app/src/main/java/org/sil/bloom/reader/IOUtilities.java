@@ -2,14 +2,12 @@ package org.sil.bloom.reader;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
 import androidx.annotation.IntDef;
 
-import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.util.Log;
 import android.widget.Toast;
@@ -19,6 +17,7 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.io.IOUtils;
+import org.sil.bloom.reader.models.BookIndex;
 import org.sil.bloom.reader.models.BookOrShelf;
 import org.sil.bloom.reader.models.BookCollection;
 
@@ -38,6 +37,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.function.Predicate;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -51,6 +51,7 @@ public class IOUtilities {
     public static final String[] BOOK_FILE_EXTENSIONS = {".bloompub", ".bloomd"};
     public static final String BOOKSHELF_FILE_EXTENSION = ".bloomshelf";
     public static final String BLOOM_BUNDLE_FILE_EXTENSION = ".bloombundle";
+    // No longer used except to migrate what was stored there into BookIndex.
     public static final String CHECKED_FILES_TAG = "org.sil.bloom.reader.checkedfiles";
 
     // Some file transfer mechanisms leave this appended to .bloompub/.bloomd (or .bloombundle)
@@ -191,7 +192,25 @@ public class IOUtilities {
     public @interface FileChecks {
     }
 
-    private static SharedPreferences sCheckedFiles = null;
+    // How thoroughly to check a zip file.  VALIDATE_CENTRAL_DIRECTORY reads only the zip's central
+    // directory (plus the desired file, if any) and checks that the sizes and CRCs recorded there
+    // are consistent.  That catches truncated and badly written files and is cheap enough to do
+    // for every book at startup.  VALIDATE_FULL decompresses every entry, which also catches
+    // corrupted data, but takes a long time for big audio or video books; we only do that when a
+    // file first arrives or in a background sweep (see FullValidationTask).
+    public static final int VALIDATE_CENTRAL_DIRECTORY = 0;
+    public static final int VALIDATE_FULL = 1;
+
+    @IntDef({VALIDATE_CENTRAL_DIRECTORY, VALIDATE_FULL})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ValidationLevels {
+    }
+
+    // Where we remember which files have passed the full check (see BookIndex), or null if we
+    // can't get at it, e.g., in unit tests.
+    private static BookIndex getCheckedFiles(Context context) {
+        return context == null ? null : BookIndex.getInstance(context);
+    }
 
     // Check whether the given input file is a valid zip file.
     public static boolean isValidZipFile(File input) {
@@ -203,26 +222,30 @@ public class IOUtilities {
         return isValidZipFile(input, checkType, null);
     }
 
+    public static boolean isValidZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile) {
+        return isValidZipFile(input, checkType, desiredFile, VALIDATE_FULL);
+    }
+
     // Check whether the given input file is a valid zip file that appears to have the proper data
-    // for the given type.  We record the result of this check in a "SharedPreferences" file with
-    // the modification time paired with the absolute pathname of the file.  If these match on the
-    // next call, we'll return true without actually going through the slow process of unzipping
-    // the whole file.  Note that this fast bypass ignores the checkType and desiredFile parameters.
+    // for the given type.  When a file passes the full check, we record that in the BookIndex
+    // database with the modification time paired with the absolute pathname of the file.  If these match
+    // on the next call, we'll return true (at any level) without actually going through the slow
+    // process of unzipping the whole file.  Note that this fast bypass ignores the checkType and
+    // desiredFile parameters.  Passing only the central directory check is not recorded, since
+    // repeating it costs about the same as extracting meta.json, which we need anyway.
     // The desiredFile parameter is designed to avoid having to unzip the file twice during startup,
     // once to ensure that it is valid and once to get the meta.json file content.
-    public static boolean isValidZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile) {
+    public static boolean isValidZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile,
+                                         @ValidationLevels int level) {
         String key = input.getAbsolutePath();
-        if (sCheckedFiles == null) {
-            Context context = getBloomApplicationContext();
-            if (context != null) {
-                sCheckedFiles = context.getSharedPreferences(CHECKED_FILES_TAG, 0);
-            }
-        }
-        if (sCheckedFiles != null) {
-            long timestamp = sCheckedFiles.getLong(key, 0L);
-            if (timestamp == input.lastModified() && timestamp != 0L)
+        BookIndex checkedFiles = getCheckedFiles(getBloomApplicationContext());
+        if (checkedFiles != null) {
+            long timestamp = input.lastModified();
+            if (timestamp != 0L && checkedFiles.isKnownValid(key, timestamp))
                 return true;
         }
+        if (level == VALIDATE_CENTRAL_DIRECTORY)
+            return isValidZipCentralDirectory(input, checkType, desiredFile);
         try {
             // REVIEW very minimal check for .bloompub/.bloomd files: are there any filenames guaranteed to exist
             // in any .bloompub/.bloomd file regardless of age?
@@ -295,29 +318,117 @@ public class IOUtilities {
                 retval = countHtml == 1 && countCss > 0;
             else
                 retval = true;
-            if (retval && sCheckedFiles != null) {
-                SharedPreferences.Editor editor = sCheckedFiles.edit();
-                editor.putLong(key, input.lastModified());
-                editor.apply();
-            }
+            if (retval && checkedFiles != null)
+                checkedFiles.recordValid(key, input.lastModified());
             return retval;
         } catch (Exception e) {
             return false;
         }
     }
 
+    // The cheap level of isValidZipFile.  Opening the ZipFile reads the central directory (and
+    // fails if the file has been truncated, since the directory is at the end).  We then check that
+    // what it says about each entry is self-consistent, and that the entries could actually fit in
+    // the file.  The only entry we decompress is desiredFile, and we verify its CRC while we're at it.
+    private static boolean isValidZipCentralDirectory(File input, @FileChecks int checkType, TextFileContent desiredFile) {
+        try (ZipFile zipFile = new ZipFile(input)) {
+            int countHtml = 0;
+            int countCss = 0;
+            long totalCompressedSize = 0;
+            ZipEntry desiredEntry = null;
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory())
+                    continue;
+                if (!isEntryConsistent(entry)) {
+                    Log.e("IOUtilities", "Inconsistent central directory record for " + entry.getName() +
+                            " in " + input.getName() + ": size = " + entry.getSize() + ", compressed size = " +
+                            entry.getCompressedSize() + ", crc = " + entry.getCrc() + ", storage method = " + entry.getMethod());
+                    return false;
+                }
+                totalCompressedSize += entry.getCompressedSize();
+                String entryName = entry.getName().toLowerCase(Locale.ROOT);
+                // For validation purposes we're only interested in html files in the root directory.
+                // Activities, for example, may legitimately have their own.
+                if ((entryName.endsWith(".htm") || entryName.endsWith(".html")) && entryName.indexOf("/") < 0)
+                    ++countHtml;
+                else if (entryName.endsWith(".css"))
+                    ++countCss;
+                if (desiredFile != null && entryName.equals(desiredFile.getFilename()))
+                    desiredEntry = entry;
+            }
+            if (totalCompressedSize > input.length()) {
+                Log.e("IOUtilities", "Entries of " + input.getName() + " claim " + totalCompressedSize +
+                        " bytes, but the file has only " + input.length());
+                return false;
+            }
+            if (desiredEntry != null && !extractAndCheckCrc(zipFile, desiredEntry, desiredFile))
+                return false;
+            if (checkType == IOUtilities.CHECK_BLOOMPUB)
+                return countHtml == 1 && countCss > 0;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Checks that the sizes and CRC recorded for an entry in the central directory are plausible.
+    // (-1 means the value is unknown, which should never be the case for an entry in a zip file
+    // that was completely written.)
+    static boolean isEntryConsistent(ZipEntry entry) {
+        long size = entry.getSize();
+        long compressedSize = entry.getCompressedSize();
+        long crc = entry.getCrc();
+        if (size < 0 || compressedSize < 0 || crc < 0)
+            return false;
+        if (size == 0)
+            return crc == 0;
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return compressedSize == size;
+            case ZipEntry.DEFLATED:
+                // This is zlib's deflateBound(): deflate never expands data by more than this.
+                long maxCompressedSize = size + (size >> 12) + (size >> 14) + (size >> 25) + 13;
+                return compressedSize > 0 && compressedSize <= maxCompressedSize;
+            default:
+                return false; // ZipFile couldn't read it anyway.
+        }
+    }
+
+    // Decompress one entry, check it against the CRC in the central directory, and if it matches
+    // save its content in desiredFile.
+    private static boolean extractAndCheckCrc(ZipFile zipFile, ZipEntry entry, TextFileContent desiredFile) throws IOException {
+        int realSize = (int) entry.getSize();
+        byte[] buffer = new byte[realSize];
+        try (InputStream stream = zipFile.getInputStream(entry)) {
+            int size = 0;
+            int count;
+            while (size < realSize && (count = stream.read(buffer, size, realSize - size)) > 0)
+                size += count;
+            if (size != realSize) {
+                Log.e("IOUtilities", "Unzip size read " + size + " != size expected " + realSize + " for " + entry.getName());
+                return false;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer, 0, realSize);
+        if (crc.getValue() != entry.getCrc()) {
+            Log.e("IOUtilities", "CRC mismatch for " + entry.getName());
+            return false;
+        }
+        desiredFile.Content = new String(buffer, desiredFile.getEncoding());
+        return true;
+    }
+
     // The same test, but here we only have available a URI.
     public static boolean isValidZipUri(Uri input, @FileChecks int checkType, TextFileContent desiredFile) {
         String key = input.toString();
         Context context = getBloomApplicationContext();
-        if (sCheckedFiles == null) {
-            if (context != null) {
-                sCheckedFiles = context.getSharedPreferences(CHECKED_FILES_TAG, 0);
-            }
-        }
-        if (sCheckedFiles != null) {
-            long timestamp = sCheckedFiles.getLong(key, 0L);
-            if (timestamp == lastModified(context, input) && timestamp != 0L)
+        BookIndex checkedFiles = getCheckedFiles(context);
+        if (checkedFiles != null) {
+            long timestamp = lastModified(context, input);
+            if (timestamp != 0L && checkedFiles.isKnownValid(key, timestamp))
                 return true;
         }
         try {
@@ -384,11 +495,8 @@ public class IOUtilities {
                 retval = countHtml == 1 && countCss > 0;
             else
                 retval = true;
-            if (retval && sCheckedFiles != null) {
-                SharedPreferences.Editor editor = sCheckedFiles.edit();
-                editor.putLong(key, lastModified(context, input));
-                editor.apply();
-            }
+            if (retval && checkedFiles != null)
+                checkedFiles.recordValid(key, lastModified(context, input));
             return retval;
         } catch (Exception e) {
             return false;
@@ -401,14 +509,14 @@ public class IOUtilities {
             return new File(uri.getPath()).lastModified(); // returns zero if anything goes wrong.
         }
         if (uri.getScheme().equals("content")) {
-            // SAF type URIs.
-            try (Cursor cursor = context.getContentResolver().query(uri, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst())
-                    return cursor.getLong(cursor.getColumnIndexOrThrow(DocumentsContract.Document.COLUMN_LAST_MODIFIED));
-            } catch (Exception e) {
-                e.printStackTrace();
-                return 0;
-            }
+            // SAF type URIs. Usually we know already, or can find out along with the other books
+            // in the same directory.
+            DocumentMetadata.Info info = DocumentMetadata.get(context, uri);
+            if (info != null)
+                return info.lastModified;
+            if (DocumentMetadata.isTreeDocumentUri(uri))
+                return 0; // get() has just asked the provider, which couldn't tell us
+            return DocumentMetadata.queryLastModified(context, uri);
         }
         assert false; // some scheme we know nothing about.
         return 0;
@@ -514,42 +622,44 @@ public class IOUtilities {
     public static boolean copyAsset(AssetManager assetManager, String fromAssetPath, String toFilePath) {
         try {
             InputStream in = assetManager.open(fromAssetPath);
-            return copyFile(in, toFilePath);
+            readFileFromInput(in, new File(toFilePath));
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
 
+    // Copy the stream (which is closed) to a book file. The file only appears (or is replaced)
+    // once it is complete (see StagedFile).
     public static boolean copyFile(InputStream fromStream, String toPath) {
-
-        File output = new File(toPath);
-        try {
-            readFileFromInput(fromStream, output);
+        try (InputStream in = fromStream) {
+            StagedFile.write(in, new File(toPath), null, BUFFER_SIZE);
             return true;
         } catch (Exception e) {
-            output.delete();  // A partial file causes problems (BL-6970), so delete what we copied.
+            // A partial file causes problems (BL-6970), but StagedFile never leaves one.
+            e.printStackTrace();
             return false;
         }
     }
+
+    // Copy the stream to the output file, and close it. This is for files only we look at, like
+    // the ones we extract from a book to read it, so it doesn't take the trouble copyFile() does.
     public static void readFileFromInput(InputStream fromStream, File output) throws IOException {
-        int totalRead = 0;
-        try {
-        output.getParentFile().mkdirs(); // can't find a clear answer on whether createNewFile will do this
-        output.createNewFile(); //this does nothing if if already exists
-        OutputStream out = new FileOutputStream(output);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int read;
-        while ((read = fromStream.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-            totalRead += read;
-        }
-        fromStream.close();
-        out.flush();
-        out.close();
-        } catch (Exception e) {
-            Log.e("IOUtilities", "Copied "+totalRead+" bytes to "+output.getPath()+" before failing ("+e.getMessage()+")");
-            e.printStackTrace();
+        long totalRead = 0;
+        try (InputStream in = fromStream) {
+            output.getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(output)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    totalRead += read;
+                }
+            }
+        } catch (IOException e) {
+            Log.e("IOUtilities", "Copied " + totalRead + " bytes to " + output.getPath() + " before failing (" + e.getMessage() + ")");
+            output.delete();
             throw e;
         }
     }
@@ -565,25 +675,26 @@ public class IOUtilities {
     }
 
     public static boolean copyBookOrShelfFile(Context context, Uri bookOrShelfUri, String toPath) {
-        try {
-            InputStream in = context.getContentResolver().openInputStream(bookOrShelfUri);
-            if (copyFile(in, toPath)) {
-                // Even if the copy succeeds, if the result is not a valid book or shelf file, delete it
-                // and fail.
-                File newFile = new File(toPath);
-                boolean validFile = toPath.endsWith(BOOKSHELF_FILE_EXTENSION)
+        File newFile = new File(toPath);
+        boolean isShelf = toPath.endsWith(BOOKSHELF_FILE_EXTENSION);
+        try (InputStream in = context.getContentResolver().openInputStream(bookOrShelfUri)) {
+            // Even if the copy succeeds, if the result is not a valid book or shelf file, it never
+            // appears in the books directory, and we fail.
+            StagedFile.write(in, newFile, staged -> isShelf
                     ? BloomShelfFileReader.isValidShelf(context, bookOrShelfUri)
-                        : isValidZipFile(newFile, CHECK_BLOOMPUB);
-                if (!validFile) {
-                    newFile.delete();
-                    return false;
-                }
-                return true;
-            }
+                    : isValidZipFile(staged, CHECK_BLOOMPUB), BUFFER_SIZE);
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
-        return false;
+        if (!isShelf) {
+            // We gave it the full check under its staging name. Renaming it kept its modification
+            // time, so it need not be checked again under its real one.
+            BookIndex checkedFiles = getCheckedFiles(context);
+            if (checkedFiles != null)
+                checkedFiles.recordValid(newFile.getAbsolutePath(), newFile.lastModified());
+        }
+        return true;
     }
 
     public static String FileToString(File file) {
@@ -675,18 +786,11 @@ public class IOUtilities {
         ArchiveEntry entry = tarInput.getCurrentEntry();
         File destPath=new File(targetPath,entry.getName());
         if (!entry.isDirectory()) {
-            FileOutputStream fout=new FileOutputStream(destPath);
-            try{
-                final byte[] buffer=new byte[8192];
-                int n=0;
-                while (-1 != (n=tarInput.read(buffer))) {
-                    fout.write(buffer,0,n);
-                }
-                fout.close();
+            try {
+                // The book only appears in the books directory once it is complete.
+                StagedFile.write(tarInput, destPath, null, 8192);
             }
             catch (IOException e) {
-                fout.close();
-                destPath.delete();
                 tarInput.close();
                 throw e;
             }
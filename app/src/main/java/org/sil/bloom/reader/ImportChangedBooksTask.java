@@ -0,0 +1,95 @@
+package org.sil.bloom.reader;
+
+import android.os.AsyncTask;
+
+import org.sil.bloom.reader.models.BookCollection;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+// Moves the books that BookDirectoryWatcher found new or changed in the Bloom directory into our
+// private book collection, all in one background job, then tells the activity about all of them
+// at once (see BaseActivity.onNewOrUpdatedBooks()). When Bloom desktop pushes a whole collection
+// over USB, this means we get every book, without copying them on the UI thread, and the list
+// is refreshed once rather than once per book.
+// If the watcher reports more changes while we're busy, another of these tasks will run
+// after this one (AsyncTasks run one at a time). Books we fail to move are handed back to the
+// activity, so the watcher can report them again next time it looks.
+public class ImportChangedBooksTask extends AsyncTask<BookDirectoryWatcher.ChangedBookFile, Object, ImportChangedBooksTask.Result> {
+    static class Result {
+        final List<String> newBookPaths = new ArrayList<>();
+        final List<BookDirectoryWatcher.ChangedBookFile> failures = new ArrayList<>();
+    }
+
+    private final WeakReference<BaseActivity> activityRef;
+
+    ImportChangedBooksTask(BaseActivity activity) {
+        // See https://stackoverflow.com/questions/44309241/warning-this-asynctask-class-should-be-static-or-leaks-might-occur/46166223#46166223
+        this.activityRef = new WeakReference<>(activity);
+    }
+
+    @Override
+    protected Result doInBackground(BookDirectoryWatcher.ChangedBookFile... changes) {
+        Result result = new Result();
+        for (int i = 0; i < changes.length; i++) {
+            BaseActivity activity = activityRef.get();
+            if (activity == null)
+                break; // Whatever we didn't move is still there; we'll find it next time we start.
+            BookDirectoryWatcher.ChangedBookFile change = changes[i];
+            // The file is in the Bloom directory. Move it to private book collection.
+            File privateStorageFile;
+            boolean moved;
+            if (change.path != null) {
+                File newFile = new File(change.path);
+                privateStorageFile = new File(BookCollection.getLocalBooksDirectory(), newFile.getName());
+                if (privateStorageFile.exists() && privateStorageFile.lastModified() >= change.lastModified)
+                    continue; // already have this version of book, or an even newer one
+                publishProgress(privateStorageFile.getName(), i + 1, changes.length);
+                moved = activity.moveBookFileToLocalFolderLegacy(
+                        // In this case, the file is being added in the context of a specific
+                        // channel of Bloom Reader. So there's no reason to keep it around for other channels.
+                        false,
+                        newFile,
+                        privateStorageFile);
+            } else {
+                String fileName = BookCollection.fixBloomd(IOUtilities.getFileNameFromUri(activity, change.uri));
+                privateStorageFile = new File(BookCollection.getLocalBooksDirectory(), fileName);
+                if (privateStorageFile.exists() && privateStorageFile.lastModified() >= change.lastModified)
+                    continue; // already have this version of book, or an even newer one
+                publishProgress(privateStorageFile.getName(), i + 1, changes.length);
+                moved = activity.moveBookFileToLocalFolderSAF(
+                        // In this case, the file is being added in the context of a specific
+                        // channel of Bloom Reader. So there's no reason to keep it around for other channels.
+                        false,
+                        change.uri,
+                        privateStorageFile);
+            }
+            if (!moved)
+                result.failures.add(change);
+            else if (privateStorageFile.exists())
+                result.newBookPaths.add(privateStorageFile.getAbsolutePath());
+        }
+        return result;
+    }
+
+    @Override
+    protected void onProgressUpdate(Object... progress) {
+        BaseActivity activity = activityRef.get();
+        if (activity == null || activity.isFinishing())
+            return;
+        activity.onImportProgress((String) progress[0], (Integer) progress[1], (Integer) progress[2]);
+    }
+
+    @Override
+    protected void onPostExecute(Result result) {
+        BaseActivity activity = activityRef.get();
+        if (activity == null || activity.isFinishing())
+            return;
+        if (!result.failures.isEmpty())
+            activity.onImportFailed(result.failures);
+        if (!result.newBookPaths.isEmpty())
+            activity.onNewOrUpdatedBooks(result.newBookPaths);
+    }
+}
@@ -9,8 +9,12 @@ import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import org.sil.bloom.reader.models.BookCollection;
+import org.sil.bloom.reader.models.BookOrShelf;
+
 import java.lang.ref.WeakReference;
 import java.util.Date;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -38,6 +42,38 @@ public class InitializeLibraryTask extends AsyncTask<Void, Void, Void> {
 
         mainActivity.runOnUiThread(() -> mainActivity.mLoadingProgressBar.setMax(count));
     }
+    // Make a change to the whole book list (e.g., put a new filtered list in place) on the UI
+    // thread, and have the list show it, e.g. to show the books we remembered from last time
+    // without waiting for loading to finish. Doing it on the UI thread means it can't happen while
+    // the adapter is being told about the changes made by mergeIntoBookList(). (If the activity
+    // has gone away, there's no adapter to worry about, so we just make the change.)
+    public void showBookList(final Runnable update) {
+        final MainActivity mainActivity = mainActivityRef.get();
+        if (mainActivity == null || mainActivity.isFinishing()) {
+            update.run();
+            return;
+        }
+
+        mainActivity.runOnUiThread(() -> {
+            update.run();
+            if (mainActivity.mBookListAdapter != null)
+                mainActivity.mBookListAdapter.notifyDataSetChanged();
+        });
+    }
+    // Merge the given changes into the book list on the UI thread, telling the adapter exactly
+    // which rows changed. (If the activity has gone away, there's no adapter to tell, so we just
+    // update the collection.)
+    public void mergeIntoBookList(final List<BookOrShelf> oldBooks, final List<BookOrShelf> newBooks) {
+        final BookCollection bookCollection = BloomReaderApplication.theOneBookCollection;
+        final MainActivity mainActivity = mainActivityRef.get();
+        if (mainActivity == null || mainActivity.isFinishing()) {
+            bookCollection.mergeIntoFilteredList(oldBooks, newBooks, null);
+            return;
+        }
+
+        mainActivity.runOnUiThread(() ->
+                bookCollection.mergeIntoFilteredList(oldBooks, newBooks, mainActivity.mBookListAdapter));
+    }
     // Advance the progress bar for one book being processed.
     public void incrementBookProgress() {
         publishProgress();
@@ -78,6 +114,10 @@ public class InitializeLibraryTask extends AsyncTask<Void, Void, Void> {
         }
         // Ensure all the books are displayed at the end of loading.
         mainActivity.mBookListAdapter.notifyDataSetChanged();
+        // Loading only did the cheap check of each book; do the thorough one now. This uses the
+        // thread pool so it doesn't hold up the (serial) tasks that fill in thumbnails.
+        new FullValidationTask(mainActivity, BloomReaderApplication.theOneBookCollection)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     static private void addProgressViews(MainActivity main)
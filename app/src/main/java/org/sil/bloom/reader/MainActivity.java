@@ -431,6 +431,7 @@ public class MainActivity extends BaseActivity
         File oldBloomDir = Environment.getExternalStoragePublicDirectory("Bloom");
         File newBloomDir = BookCollection.getLocalBooksDirectory();
         String[] mostRecentModifiedBook = {null};
+        long[] mostRecentModifyTime = {0};
         try {
             if (!oldBloomDir.exists()) {
                 return null; // nothing to copy
@@ -459,8 +460,8 @@ public class MainActivity extends BaseActivity
                         continue; // Don't re-copy, and especially don't overwrite a possibly newer version.
                     }
                     long modifyTime = f.lastModified();
-                    if (modifyTime > mostRecentlyModifiedBloomFileTime) {
-                        mostRecentlyModifiedBloomFileTime = modifyTime;
+                    if (modifyTime > mostRecentModifyTime[0]) {
+                        mostRecentModifyTime[0] = modifyTime;
                         mostRecentModifiedBook[0] = dest.getAbsolutePath();
                     }
 
@@ -477,8 +478,8 @@ public class MainActivity extends BaseActivity
                         final long bloomDirectoryModifiedTime = IOUtilities.lastModified(context, bookOrShelfUri);
                         if (privateStorageFile.exists() && privateStorageFile.lastModified() >= bloomDirectoryModifiedTime)
                             return; // already have this version of book, or an even newer one
-                        if (bloomDirectoryModifiedTime>mostRecentlyModifiedBloomFileTime) {
-                            mostRecentlyModifiedBloomFileTime = bloomDirectoryModifiedTime;
+                        if (bloomDirectoryModifiedTime > mostRecentModifyTime[0]) {
+                            mostRecentModifyTime[0] = bloomDirectoryModifiedTime;
                             mostRecentModifiedBook[0] = privateStorageFile.getAbsolutePath();
                         }
                         moveBookFileToLocalFolderSAF(preserveFilesInOldDirectory, bookOrShelfUri, privateStorageFile);
@@ -567,7 +568,7 @@ public class MainActivity extends BaseActivity
             playerVersionUIElement.setText("Bloom Player " + playerVersionText);
         }
 
-        // Cleans up old-style thumbnails - could be removed someday after it's run on most devices with old-style thumbnails
+        // Cleans up old-style thumbnails (just once) and compacts the thumbnail pack
         BookCollection.cleanUpOldThumbs(this);
 
         // OS automatically calls OnResume right after OnCreate, so we shouldn't need to call this here too.
@@ -753,7 +754,9 @@ public class MainActivity extends BaseActivity
 
     // Called by ImportBundleTask and when we get permission to BloomExternal
     public void reloadBookList() {
-            // Reinitialize completely to get the new state of things.
+            // Reinitialize completely to get the new state of things. What we remember about SAF
+            // documents may be out of date too (e.g., we were just given access to BloomExternal).
+            DocumentMetadata.forgetAll();
             _bookCollection.init(this, null);
             // Don't highlight the set of new books, just update the list displayed. (BL-8808)
             mBookListAdapter.notifyDataSetChanged();
@@ -811,6 +814,14 @@ public class MainActivity extends BaseActivity
         _bookCollection.setFilter("");
     }
 
+    @Override
+    protected void onDestroy() {
+        // No point in going on searching the whole device for books when there's nowhere to show them.
+        if (mBookFinderTask != null)
+            mBookFinderTask.cancel(false);
+        super.onDestroy();
+    }
+
     @Override
     protected void onPause() {
         stopObserving();
@@ -824,6 +835,24 @@ public class MainActivity extends BaseActivity
         runOnUiThread(() -> updateForNewBook(filePathOrUriLocal));
     }
 
+    // A batch of books that came into the Bloom directory together (e.g., a whole collection
+    // pushed over USB): add them all, then refresh and highlight the list once.
+    @Override
+    protected void onNewOrUpdatedBooks(List<String> filePathsOrUris) {
+        if (filePathsOrUris.size() == 1 || _bookCollection == null) {
+            super.onNewOrUpdatedBooks(filePathsOrUris);
+            return;
+        }
+        List<String> paths = _bookCollection.addBooksOrShelvesIfNeeded(filePathsOrUris);
+        highlightItems(paths);
+        if (sSkipNextNewFileSound) {
+            sSkipNextNewFileSound = false;
+        }
+        else {
+            playNewBookSound();
+        }
+    }
+
     public static void skipNextNewFileSound() {
         sSkipNextNewFileSound = true;
     }
@@ -1582,11 +1611,14 @@ public class MainActivity extends BaseActivity
         }
     };
 
+    private BookFinderTask mBookFinderTask;
+
     // This function can't be made to work in Android 11+, due to the new scoped storage rules.
     // However, devices running 10 or less can still use this more straightforward method.
     private void searchForBloomBooks_preAndroid11() {
         mFileSearchState = new FileSearchState();
-        new BookFinderTask(this, mBookSearchListener).execute();
+        mBookFinderTask = new BookFinderTask(this, mBookSearchListener);
+        mBookFinderTask.execute();
         findViewById(R.id.searching_text).setVisibility(View.VISIBLE);
     }
 
@@ -0,0 +1,86 @@
+package org.sil.bloom.reader;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    Opens a book for ReaderActivity in the background, so the UI thread isn't held up opening
+    (or, for a URI, completely extracting) a large book.
+    As soon as the book's html file is available, ReaderActivity is told to point bloom-player
+    at it. While bloom-player loads, we carry on reading the things the first page will need
+    (the stylesheets and the first page's images and narration) into memory on a few threads,
+    so that ReaderWebViewClient can serve them without waiting for the zip when they are asked
+    for (see BloomFileReader.prefetch()). After that, a PagePrefetcher keeps doing the same for
+    the pages ahead of the reader.
+ */
+public class OpenBookTask extends AsyncTask<Void, File, Void> {
+    private static final String TAG = "OpenBookTask";
+    private static final int PREFETCH_THREADS = 3;
+
+    private final WeakReference<ReaderActivity> activityRef;
+    private final BloomFileReader fileReader;
+    private IOException error;
+    private PagePrefetcher pagePrefetcher;
+
+    public OpenBookTask(ReaderActivity activity, BloomFileReader fileReader) {
+        this.activityRef = new WeakReference<>(activity);
+        this.fileReader = fileReader;
+    }
+
+    @Override
+    protected Void doInBackground(Void... v) {
+        File bookHtmlFile;
+        try {
+            bookHtmlFile = fileReader.getHtmlFile();
+        } catch (IOException e) {
+            error = e;
+            return null;
+        }
+        publishProgress(bookHtmlFile);
+
+        List<String> wanted = new ArrayList<>(fileReader.getTopLevelFilesWithExtension(".css"));
+        String html = IOUtilities.FileToString(bookHtmlFile);
+        List<Set<String>> pages = html == null ? new ArrayList<>() : PagePrefetcher.findPageFiles(html);
+        if (!pages.isEmpty())
+            wanted.addAll(pages.get(0));
+        ExecutorService executor = Executors.newFixedThreadPool(PREFETCH_THREADS);
+        PagePrefetcher.prefetch(fileReader, wanted, executor);
+        executor.shutdown(); // lets the ones already submitted finish
+        // The following pages are less urgent, and PagePrefetcher takes care of them as the
+        // reader moves through the book.
+        pagePrefetcher = new PagePrefetcher(fileReader, pages);
+        pagePrefetcher.onPageReached(0);
+        return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(File... bookHtmlFile) {
+        ReaderActivity activity = activityRef.get();
+        if (activity == null || activity.isFinishing())
+            return;
+        activity.onBookHtmlReady(fileReader, bookHtmlFile[0]);
+    }
+
+    @Override
+    protected void onPostExecute(Void v) {
+        if (error != null) {
+            Log.e(TAG, "Could not open book: " + error.getMessage());
+            return;
+        }
+        ReaderActivity activity = activityRef.get();
+        if (activity == null || activity.isFinishing()) {
+            pagePrefetcher.shutdown();
+            return;
+        }
+        activity.onPagePrefetcherReady(pagePrefetcher);
+    }
+}
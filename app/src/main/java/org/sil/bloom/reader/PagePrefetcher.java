@@ -0,0 +1,171 @@
+package org.sil.bloom.reader;
+
+import android.os.Process;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    Keeps the media for the next few pages of the book being read in memory ahead of time, so
+    that turning a page (especially in a talking book that plays its narration automatically)
+    doesn't have to wait for it to come out of the zip.
+    The book's html is parsed once into a list of the files each page uses. bloom-player doesn't
+    tell us (through ReaderActivity.receiveMessage) which page it is showing, but it does ask
+    ReaderWebViewClient for each page's files as it gets to them, so that tells us where the
+    reader has got to. Each time the reader reaches a new page, we start reading the files for
+    the next PAGES_AHEAD pages on a low-priority thread (see BloomFileReader.prefetch()),
+    and drop anything prefetched for pages the reader has left behind without using it.
+ */
+public class PagePrefetcher {
+    private static final int PAGES_AHEAD = 3;
+    // Videos (and unusually large images or audio) are better streamed when wanted than held in memory.
+    private static final long MAX_PREFETCH_FILE_SIZE = 4 * 1024 * 1024;
+
+    private static final Pattern PAGE_START = Pattern.compile("<div[^>]*\\sclass=\"([^\"]*\\s)?bloom-page[\\s\"]");
+    private static final Pattern SRC = Pattern.compile("\\ssrc=\"([^\"]+)\"");
+    private static final Pattern URL = Pattern.compile("url\\((?:&quot;|[\"'])?([^\"'&)]+)");
+    private static final Pattern AUDIO_ELEMENT = Pattern.compile("<[^>]*\\sclass=\"([^\"]*\\s)?audio-sentence[\\s\"][^>]*>");
+    private static final Pattern ID = Pattern.compile("\\sid=\"([^\"]+)\"");
+    private static final Pattern BACKGROUND_AUDIO = Pattern.compile("\\sdata-backgroundaudio=\"([^\"]+)\"");
+
+    private final BloomFileReader fileReader;
+    private final List<Set<String>> pages;
+    // For each file that only one page uses, that page. A file several pages share (like
+    // background music, or a picture repeated through the book) doesn't tell us where the reader
+    // is: the WebView may ask for it again on any of them.
+    private final Map<String, Integer> pageOfFile = new HashMap<>();
+    private final ExecutorService executor;
+    private int currentPage = -1;
+
+    public PagePrefetcher(BloomFileReader fileReader, List<Set<String>> pages) {
+        this.fileReader = fileReader;
+        this.pages = pages;
+        Set<String> shared = new HashSet<>();
+        for (int i = 0; i < pages.size(); i++) {
+            for (String file : pages.get(i)) {
+                if (pageOfFile.put(file, i) != null)
+                    shared.add(file);
+            }
+        }
+        pageOfFile.keySet().removeAll(shared);
+        executor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "PagePrefetcher"));
+    }
+
+    // Called (on one of the WebView's threads) for each file the WebView asks for.
+    public void onFileRequested(String name) {
+        Integer page = pageOfFile.get(name);
+        if (page != null)
+            onPageReached(page);
+    }
+
+    public void onPageReached(int page) {
+        List<String> toFetch = new ArrayList<>();
+        List<String> toDrop = new ArrayList<>();
+        synchronized (this) {
+            if (page == currentPage)
+                return;
+            int previousPage = currentPage;
+            currentPage = page;
+            // Going back a page or two is common, so only drop what is well behind.
+            for (int i = Math.max(0, previousPage - 2); i < page - 2; i++)
+                toDrop.addAll(pages.get(i));
+            for (int i = page + 1; i <= page + PAGES_AHEAD && i < pages.size(); i++)
+                toFetch.addAll(pages.get(i));
+        }
+        fileReader.dropPrefetched(toDrop);
+        try {
+            prefetch(fileReader, toFetch, executor);
+        } catch (RejectedExecutionException e) {
+            // We've been shut down; the book is closing.
+        }
+    }
+
+    // Prefetch, using the executor, whichever of these files are not too big.
+    public static void prefetch(BloomFileReader fileReader, Collection<String> names, ExecutorService executor) {
+        List<String> wanted = new ArrayList<>();
+        for (String name : names) {
+            if (fileReader.getFileSize(name) <= MAX_PREFETCH_FILE_SIZE)
+                wanted.add(name);
+        }
+        fileReader.prefetch(wanted, executor);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // The files (relative to the book folder) that each page of the book refers to:
+    // images, whether in img elements or background-image styles, and audio, both the
+    // narration of any recorded sentences and background music.
+    public static List<Set<String>> findPageFiles(String html) {
+        List<Set<String>> result = new ArrayList<>();
+        Matcher pageMatcher = PAGE_START.matcher(html);
+        if (!pageMatcher.find())
+            return result;
+        int start = pageMatcher.start();
+        while (start < html.length()) {
+            int end = pageMatcher.find() ? pageMatcher.start() : html.length();
+            result.add(findFilesInPage(html.substring(start, end)));
+            start = end;
+        }
+        return result;
+    }
+
+    private static Set<String> findFilesInPage(String page) {
+        Set<String> result = new LinkedHashSet<>();
+        Matcher matcher = SRC.matcher(page);
+        while (matcher.find())
+            addRelativePath(result, matcher.group(1));
+        matcher = URL.matcher(page);
+        while (matcher.find())
+            addRelativePath(result, matcher.group(1));
+        matcher = AUDIO_ELEMENT.matcher(page);
+        while (matcher.find()) {
+            Matcher idMatcher = ID.matcher(matcher.group());
+            if (idMatcher.find()) {
+                // We don't know which of these it will be; prefetch() ignores any that don't exist.
+                result.add("audio/" + idMatcher.group(1) + ".mp3");
+                result.add("audio/" + idMatcher.group(1) + ".wav");
+            }
+        }
+        matcher = BACKGROUND_AUDIO.matcher(page);
+        while (matcher.find())
+            addRelativePath(result, "audio/" + matcher.group(1));
+        return result;
+    }
+
+    private static void addRelativePath(Set<String> result, String reference) {
+        String path = reference.replace("&amp;", "&");
+        if (path.startsWith("/") || path.contains(":"))
+            return; // not in the book (e.g., http: or data:)
+        int index = path.indexOf("?");
+        if (index >= 0)
+            path = path.substring(0, index);
+        try {
+            // Bloom encodes characters like space, but a plus is just a plus.
+            path = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return;
+        }
+        if (path.startsWith("./"))
+            path = path.substring(2);
+        if (!path.isEmpty())
+            result.add(path);
+    }
+}
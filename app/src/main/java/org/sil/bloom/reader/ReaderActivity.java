@@ -3,7 +3,9 @@ package org.sil.bloom.reader;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.webkit.WebSettings;
@@ -27,8 +29,13 @@ public class ReaderActivity extends BaseActivity implements MessageReceiver {
     private JSONObject mBookProgressReport; // to send when activity finishes, if not overwritten first
     WebView mBrowser;
     WebAppInterface mAppInterface;
+    private ReaderWebViewClient mWebViewClient;
+    private PagePrefetcher mPagePrefetcher;
 
     private long mTimeStarted;
+    // When we started opening the book (SystemClock.elapsedRealtime()), so we can log how long
+    // it takes to show the first page; zero once we have done so.
+    private volatile long mOpenStartTime;
 
     public static boolean haveCurrentWebView(WebView browser) {
         String agent = browser.getSettings().getUserAgentString();
@@ -89,6 +96,7 @@ public class ReaderActivity extends BaseActivity implements MessageReceiver {
         super.onCreate(savedInstanceState);
 
         mTimeStarted = new Date().getTime();
+        mOpenStartTime = SystemClock.elapsedRealtime();
 
         // Allows remote debugging of the WebView content using Chrome over a USB cable.
         // if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
@@ -159,19 +167,28 @@ public class ReaderActivity extends BaseActivity implements MessageReceiver {
 //            }
 //        });
 
+        mBrowser.setWebChromeClient(new ReaderWebChromeClient(this));
+
+        final String path = getIntent().getStringExtra("bookPath");
+        final String uriString = getIntent().getStringExtra("bookUri");
+        final Uri uri = uriString == null ? null : Uri.parse(uriString);
+        // Opening the book can take a while, so it happens in the background, which calls
+        // onBookHtmlReady() when we can start bloom-player on it. This doesn't use the default
+        // serial executor, where it might have to wait for thumbnail tasks from the book list.
+        // enhance: possibly show and hide the wait view.
+        final BloomFileReader fileReader = new BloomFileReader(getApplicationContext(), path, uri);
+        new OpenBookTask(this, fileReader).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    // Called (on the UI thread) by OpenBookTask once the book's html file is available.
+    void onBookHtmlReady(BloomFileReader fileReader, File bookHtmlFile) {
+        if (mBrowser == null)
+            return; // already destroyed
+        Log.i(TAG, "Book html ready after " + (SystemClock.elapsedRealtime() - mOpenStartTime) + "ms");
         try {
-            final String path = getIntent().getStringExtra("bookPath");
-            final String uriString = getIntent().getStringExtra("bookUri");
-            final Uri uri = uriString == null ? null : Uri.parse(uriString);
-
-            // enhance: possibly this should happen asynchronously, in a Loader like the
-            // original.
-            // enhance: possibly show and hide the wait view.
-            final BloomFileReader fileReader = new BloomFileReader(getApplicationContext(), path, uri);
-            final File bookHtmlFile = fileReader.getHtmlFile();
             String bookFolder = new File(bookHtmlFile.getCanonicalPath()).getParent();
-            mBrowser.setWebViewClient(new ReaderWebViewClient(bookFolder, fileReader));
-            mBrowser.setWebChromeClient(new ReaderWebChromeClient(this));
+            mWebViewClient = new ReaderWebViewClient(bookFolder, fileReader);
+            mBrowser.setWebViewClient(mWebViewClient);
 
             // The url determines the content of the WebView, which is the bloomplayer.htm
             // file
@@ -194,6 +211,13 @@ public class ReaderActivity extends BaseActivity implements MessageReceiver {
         }
     }
 
+    // Called (on the UI thread) by OpenBookTask once it has worked out what is on each page.
+    void onPagePrefetcherReady(PagePrefetcher pagePrefetcher) {
+        mPagePrefetcher = pagePrefetcher;
+        if (mWebViewClient != null)
+            mWebViewClient.setPagePrefetcher(pagePrefetcher);
+    }
+
     @Override
     protected void onPause() {
         Settings settings = Settings.load(this);
@@ -232,6 +256,9 @@ public class ReaderActivity extends BaseActivity implements MessageReceiver {
 
     @Override
     protected void onDestroy() {
+        if (mPagePrefetcher != null)
+            mPagePrefetcher.shutdown();
+        Log.i(TAG, "Book asset cache: " + BookAssetCache.getInstance().getStats());
         mBrowser.destroy();
         mBrowser = null;
         MakeFinalReport();
@@ -319,6 +346,12 @@ public class ReaderActivity extends BaseActivity implements MessageReceiver {
                     settings.save(this);
                     break;
                 case "reportBookProperties":
+                    // bloom-player sends this once it has loaded the book, so this is about
+                    // when the user first sees a page.
+                    if (mOpenStartTime != 0) {
+                        Log.i(TAG, "First page shown after " + (SystemClock.elapsedRealtime() - mOpenStartTime) + "ms");
+                        mOpenStartTime = 0;
+                    }
                     setDeviceOrientation(data);
                     break;
                 case "showNavBar":
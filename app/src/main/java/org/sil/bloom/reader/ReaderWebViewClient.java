@@ -6,6 +6,7 @@ import androidx.annotation.Nullable;
 
 import android.content.Intent;
 import android.net.Uri;
+import android.webkit.MimeTypeMap;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
@@ -13,20 +14,60 @@ import android.webkit.WebViewClient;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 // This class improves security. Our WebView is, at the level of its basic settings, allowed
 // extensive file system access. However, all the requests for anything come through this
 // class's shouldInterceptRequest method. We forbid any access to any url that isn't part
 // of the folder where we decompressed this book. (Files that are in the app's assets folder,
 // like our question sounds, are exempt from this check.)
+// Files that are in the book are served by streaming them straight out of the book file,
+// rather than having the WebView read them from the folder, which would mean writing each
+// one out first.
 public class ReaderWebViewClient extends WebViewClient {
 
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    // MimeTypeMap doesn't know some of these on some versions of Android.
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+    static {
+        MIME_TYPES.put("htm", "text/html");
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("txt", "text/plain");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("mp3", "audio/mpeg");
+        MIME_TYPES.put("m4a", "audio/mp4");
+        MIME_TYPES.put("wav", "audio/wav");
+        MIME_TYPES.put("ogg", "audio/ogg");
+        MIME_TYPES.put("mp4", "video/mp4");
+        MIME_TYPES.put("webm", "video/webm");
+        MIME_TYPES.put("ttf", "font/ttf");
+        MIME_TYPES.put("otf", "font/otf");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+    }
+
     String mAllowedPathPrefix;
     BloomFileReader mFileReader;
+    // Set once the book has been parsed into pages (see OpenBookTask).
+    private volatile PagePrefetcher mPagePrefetcher;
     int mLengthOfCanonicalPrefix;
     public ReaderWebViewClient(String bookFolderPath, BloomFileReader fileReader) {
         // Our basic strategy is to extract files to a directory and give bloom-player
@@ -34,12 +75,16 @@ public class ReaderWebViewClient extends WebViewClient {
         // will start with file:// plus the path to the folder.
         mAllowedPathPrefix = "file://" + bookFolderPath;
         mFileReader = fileReader;
-        // To get a key for fileReader.tryGetFile, we need to take the canonical path
+        // To get a key for fileReader.tryOpenStream, we need to take the canonical path
         // of the file requested and strip off the bit indicated by allowedPathPrefix.
         // (plus one more slash).
         mLengthOfCanonicalPrefix = bookFolderPath.length() + 1;
     }
 
+    public void setPagePrefetcher(PagePrefetcher pagePrefetcher) {
+        mPagePrefetcher = pagePrefetcher;
+    }
+
     @Nullable
     @Override
     public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
@@ -49,7 +94,27 @@ public class ReaderWebViewClient extends WebViewClient {
         if (fontResponse != null)
             return fontResponse;
 
-        if (urlIsAllowed(url))
+        String canonicalUrl = getCanonicalUrl(url);
+        if (canonicalUrl != null && canonicalUrl.startsWith(mAllowedPathPrefix)
+                && canonicalUrl.length() > "file://".length() + mLengthOfCanonicalPrefix) {
+            String keyInZip = canonicalUrl.substring("file://".length() + mLengthOfCanonicalPrefix);
+            int index = keyInZip.indexOf("?");
+            if (index >= 0) {
+                keyInZip = keyInZip.substring(0,index);
+            }
+            PagePrefetcher pagePrefetcher = mPagePrefetcher;
+            if (pagePrefetcher != null)
+                pagePrefetcher.onFileRequested(keyInZip);
+            WebResourceResponse response = getBookFileResponse(keyInZip, request);
+            if (response != null)
+                return response;
+            // Not in the book file, but it may be something we put in the folder ourselves,
+            // like an index.htm renamed from some other html file.
+            return super.shouldInterceptRequest(view, request);
+        }
+        // I think this only happens before Android 21 (Lollipop); in later androids,
+        // the app's own assets are automatically OK.
+        if (canonicalUrl != null && canonicalUrl.startsWith("file:///android_asset/bloom-player/"))
             return super.shouldInterceptRequest(view, request);
 
         return new WebResourceResponse("text", "utf-8", 403,
@@ -124,9 +189,10 @@ public class ReaderWebViewClient extends WebViewClient {
 
     // We use the canonical path of the file to prevent hacks involving a valid directory
     // prefix followed by multiple "../" to get back to one that is not permitted.
-    private boolean urlIsAllowed(String url) {
+    // Returns null for anything that isn't a file url (or can't be made canonical).
+    private String getCanonicalUrl(String url) {
         if (!url.startsWith("file://"))
-            return false;
+            return null;
         String path = null;
         try {
             path = URLDecoder.decode(url.substring("file://".length()), "UTF-8");
@@ -134,23 +200,131 @@ public class ReaderWebViewClient extends WebViewClient {
             e.printStackTrace(); // absolutely stupid compiler requirement, of course UTF-8 is supported!
         }
         try {
-            String canonicalPath = new File(path).getCanonicalPath();
-            String canonicalUrl = "file://" + canonicalPath;
-            if (canonicalUrl.startsWith(mAllowedPathPrefix)) {
-                // Make sure the file we want has been unzipped.
-                String keyInZip = canonicalPath.substring(mLengthOfCanonicalPrefix);
-                int index = keyInZip.indexOf("?");
-                if (index >= 0) {
-                    keyInZip = keyInZip.substring(0,index);
-                }
-                mFileReader.tryGetFile(keyInZip);
-                return true;
+            return "file://" + new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // A response that streams the requested entry directly out of the book file, or null
+    // if there is no such entry. Audio and video elements typically ask for a range of bytes
+    // (e.g., when seeking), so we support the simple single-range form of that.
+    private WebResourceResponse getBookFileResponse(String keyInZip, WebResourceRequest request) {
+        InputStream data = mFileReader.tryOpenStream(keyInZip);
+        if (data == null)
+            return null;
+        String mimeType = getMimeType(keyInZip);
+        String encoding = mimeType.startsWith("text/") ? "utf-8" : null;
+        Map<String, String> headers = new HashMap<>();
+        long size = mFileReader.getFileSize(keyInZip);
+        if (size < 0)
+            return new WebResourceResponse(mimeType, encoding, data);
+        headers.put("Accept-Ranges", "bytes");
+        String range = request.getRequestHeaders() == null ? null : request.getRequestHeaders().get("Range");
+        Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range.trim());
+        if (matcher == null || !matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            headers.put("Content-Length", String.valueOf(size));
+            return new WebResourceResponse(mimeType, encoding, 200, "OK", headers, data);
+        }
+        long start, end;
+        if (matcher.group(1).isEmpty()) {
+            // "bytes=-n" means the last n bytes.
+            start = Math.max(0, size - Long.parseLong(matcher.group(2)));
+            end = size - 1;
+        } else {
+            start = Long.parseLong(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? size - 1 : Math.min(Long.parseLong(matcher.group(2)), size - 1);
+        }
+        if (start >= size || end < start) {
+            closeQuietly(data);
+            headers.put("Content-Range", "bytes */" + size);
+            return new WebResourceResponse(mimeType, encoding, 416, "Range Not Satisfiable", headers,
+                    new ByteArrayInputStream(new byte[0]));
+        }
+        try {
+            skipFully(data, start);
+        } catch (IOException e) {
+            closeQuietly(data);
+            return null;
+        }
+        long length = end - start + 1;
+        headers.put("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        headers.put("Content-Length", String.valueOf(length));
+        return new WebResourceResponse(mimeType, encoding, 206, "Partial Content", headers,
+                new LimitedInputStream(data, length));
+    }
+
+    private static String getMimeType(String name) {
+        int index = name.lastIndexOf('.');
+        if (index < 0)
+            return "application/octet-stream";
+        String extension = name.substring(index + 1).toLowerCase(Locale.ROOT);
+        String result = MIME_TYPES.get(extension);
+        if (result == null)
+            result = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        return result == null ? "application/octet-stream" : result;
+    }
+
+    // InputStream.skip() may skip less than asked (e.g., for a compressed zip entry), so keep going.
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                if (input.read() < 0)
+                    throw new IOException("Unexpected end of stream");
+                skipped = 1;
             }
-            // I think this only happens before Android 21 (Lollipop); in later androids,
-            // the app's own assets are automatically OK.
-            return canonicalUrl.startsWith("file:///android_asset/bloom-player/");
+            count -= skipped;
+        }
+    }
+
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
         } catch (IOException e) {
-            return false;
+            // nothing useful we can do
+        }
+    }
+
+    // Reads no more than the given number of bytes from the underlying stream.
+    private static class LimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        LimitedInputStream(InputStream input, long limit) {
+            super(input);
+            mRemaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int result = super.read();
+            if (result >= 0)
+                mRemaining--;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int result = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (result > 0)
+                mRemaining -= result;
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long result = super.skip(Math.min(count, mRemaining));
+            mRemaining -= result;
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
         }
     }
 }
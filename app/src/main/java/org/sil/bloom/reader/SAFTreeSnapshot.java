@@ -0,0 +1,178 @@
+package org.sil.bloom.reader;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// What we know about the files in an SAF tree (e.g., BloomExternal, or the Bloom directory), so
+// that the several things that want to know what books are there don't each walk the whole tree
+// at a ContentResolver query per directory. (A single startup used to walk BloomExternal two or
+// three times: to count the books, to load them, and to look for new ones.)
+// When asked to refresh, we only list a directory again if its last-modified time has changed,
+// which happens when files are added to it, removed or renamed; finding that out is a one-row
+// query (or comes free with listing its parent). The top directory is always listed again,
+// since that's where new books usually arrive, and a book overwritten in place only changes its
+// own time. A snapshot refreshed in the last few seconds is used as it is, unless the caller
+// needs to be sure it is up to date.
+public class SAFTreeSnapshot {
+    private static final String TAG = "SAFTreeSnapshot";
+    private static final long REUSE_WITHOUT_REFRESH_MS = 3000;
+
+    public static class Document {
+        public final Uri uri;
+        public final String documentId;
+        public final String name;
+        public final long size;
+        public final long lastModified;
+
+        Document(Uri uri, String documentId, String name, long size, long lastModified) {
+            this.uri = uri;
+            this.documentId = documentId;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class Directory {
+        long lastModified; // 0 if the provider didn't say, in which case we always list it again
+        boolean incomplete; // we couldn't list it all
+        final List<Document> files = new ArrayList<>();
+        // id -> last modified time, as it was when we listed this directory
+        final Map<String, Long> subdirectories = new LinkedHashMap<>();
+    }
+
+    // A directory still to look at in a refresh.
+    private static class Pending {
+        final String documentId;
+        final Long lastModified; // null if we don't know it's current
+
+        Pending(String documentId, Long lastModified) {
+            this.documentId = documentId;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final Map<Uri, SAFTreeSnapshot> sSnapshots = new HashMap<>();
+
+    public static synchronized SAFTreeSnapshot get(Uri treeUri) {
+        SAFTreeSnapshot snapshot = sSnapshots.get(treeUri);
+        if (snapshot == null) {
+            snapshot = new SAFTreeSnapshot(treeUri);
+            sSnapshots.put(treeUri, snapshot);
+        }
+        return snapshot;
+    }
+
+    private final Uri treeUri;
+    // Every directory in the tree, by document id.
+    private Map<String, Directory> directories = new HashMap<>();
+    private long refreshedAt; // SystemClock.elapsedRealtime(); 0 if never
+
+    private SAFTreeSnapshot(Uri treeUri) {
+        this.treeUri = treeUri;
+    }
+
+    // All the files in the tree (not directories).
+    public synchronized List<Document> getFiles(Context context, boolean mustBeCurrent) {
+        if (mustBeCurrent || refreshedAt == 0
+                || SystemClock.elapsedRealtime() - refreshedAt > REUSE_WITHOUT_REFRESH_MS) {
+            refresh(context.getContentResolver());
+        }
+        List<Document> result = new ArrayList<>();
+        for (Directory directory : directories.values())
+            result.addAll(directory.files);
+        return result;
+    }
+
+    private void refresh(ContentResolver resolver) {
+        Map<String, Directory> refreshed = new HashMap<>();
+        String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+        Deque<Pending> toVisit = new ArrayDeque<>();
+        toVisit.add(new Pending(rootId, null));
+        while (!toVisit.isEmpty()) {
+            Pending pending = toVisit.remove();
+            if (refreshed.containsKey(pending.documentId))
+                continue; // shouldn't happen, but don't go round in circles
+            Directory known = directories.get(pending.documentId);
+            Directory directory = null;
+            long lastModified = pending.lastModified == null ? 0 : pending.lastModified;
+            if (known != null && known.lastModified != 0 && !pending.documentId.equals(rootId)) {
+                if (pending.lastModified == null)
+                    lastModified = queryLastModified(resolver, pending.documentId);
+                if (lastModified == known.lastModified)
+                    directory = known; // nothing added, removed or renamed
+            }
+            boolean listed = directory == null;
+            if (listed) {
+                directory = list(resolver, pending.documentId);
+                directory.lastModified = directory.incomplete ? 0 : lastModified;
+            }
+            refreshed.put(pending.documentId, directory);
+            // If we just listed it, the times we got for its subdirectories are current.
+            for (Map.Entry<String, Long> subdirectory : directory.subdirectories.entrySet())
+                toVisit.add(new Pending(subdirectory.getKey(), listed ? subdirectory.getValue() : null));
+        }
+        directories = refreshed;
+        refreshedAt = SystemClock.elapsedRealtime();
+    }
+
+    private Directory list(ContentResolver resolver, String documentId) {
+        Directory directory = new Directory();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        Log.d(TAG, "node uri: " + childrenUri);
+        try (Cursor c = resolver.query(childrenUri, new String[]{
+                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                        DocumentsContract.Document.COLUMN_MIME_TYPE,
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+                        DocumentsContract.Document.COLUMN_SIZE},
+                null, null, null)) {
+            if (c == null)
+                return directory;
+            while (c.moveToNext()) {
+                String docId = c.getString(0);
+                String name = c.getString(1);
+                // (A provider may not know when a file was modified, or how big it is.)
+                long lastModified = c.isNull(3) ? 0 : c.getLong(3);
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(c.getString(2))) {
+                    directory.subdirectories.put(docId, lastModified);
+                } else {
+                    Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, docId);
+                    long size = c.isNull(4) ? 0 : c.getLong(4);
+                    directory.files.add(new Document(uri, docId, name, size, lastModified));
+                    DocumentMetadata.remember(uri, name, size, lastModified);
+                }
+            }
+        } catch (Exception e) {
+            // e.g., we've lost permission, or the card was removed
+            Log.e(TAG, "Could not list " + childrenUri + ": " + e.getMessage());
+            directory.incomplete = true;
+        }
+        return directory;
+    }
+
+    private long queryLastModified(ContentResolver resolver, String documentId) {
+        Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+        try (Cursor c = resolver.query(uri, new String[]{DocumentsContract.Document.COLUMN_LAST_MODIFIED},
+                null, null, null)) {
+            if (c != null && c.moveToFirst() && !c.isNull(0))
+                return c.getLong(0);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not query " + uri + ": " + e.getMessage());
+        }
+        return 0;
+    }
+}
@@ -4,7 +4,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.UriPermission;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.DocumentsContract;
@@ -13,17 +12,15 @@ import android.util.Log;
 import androidx.documentfile.provider.DocumentFile;
 
 import java.io.BufferedReader;
-import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static org.sil.bloom.reader.IOUtilities.BLOOM_BUNDLE_FILE_EXTENSION;
@@ -207,134 +204,46 @@ public class SAFUtilities {
     }
 
 
+    // Tell the listener about every book, shelf and bundle in the tree. (This uses what
+    // SAFTreeSnapshot knows, if it's very recent.)
     public static void searchDirectoryForBooks(Context context, Uri uri, BookSearchListener bookSearchListener) {
-        //uri = Uri.parse("content://com.android.externalstorage.documents/tree/primary%3AAlarms");
-
-        traverseDirectoryEntries(context, uri, bookSearchListener);
-
-
-//                Uri childrenUri =
-//                        DocumentsContract.buildChildDocumentsUriUsingTree(
-//                                uri,
-//                                DocumentsContract.getTreeDocumentId(uri)
-//                        );
-//                // get document file from children uri
-//                DocumentFile tree = DocumentFile.fromTreeUri(this, childrenUri);
-//                if (tree != null) {
-//                    DocumentFile[] files = tree.listFiles();
-//                    for (DocumentFile f : files) {
-//                        Log.d("GetBooks", "f.getUri(): " + f.getUri() + "f.getName(): " + f.getName());
-//                        //importBook(f.getUri(), f.getName(), false);
-//                    }
-//                }
-        // get the list of the documents
-        //tree?.listFiles()?.forEach { doc ->
-        // get the input stream of a single document
-        //val iss = contentResolver.openInputStream(doc.uri)
-        // prepare the output stream
-        //val oss = FileOutputStream(File(filesDir, doc.name))
-        // copy the file
-//                    CopyFile { result ->
-//                            println("file copied? $result")
-//                    }.execute(iss, oss)
-//                }
-    }
-
-    public static int countBooksIn(Context context, Uri rootUri) {
-        final int[] count = {0};
-        BookSearchListener listener = new BookSearchListener() {
-            @Override
-            public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri) {
-                count[0]++;
-            }
-
-            @Override
-            public void onFoundBundle(Uri bundleUri) {
-
+        for (SAFTreeSnapshot.Document document : SAFTreeSnapshot.get(uri).getFiles(context, false)) {
+            String name = document.name;
+            if (name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION) ||
+                    name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION + ENCODED_FILE_EXTENSION)) {
+                bookSearchListener.onFoundBundle(document.uri);
+            } else if (isBookOrShelfName(name)) {
+                String uriPath = document.uri.getPath();
+                if (uriPath != null)
+                    bookSearchListener.onFoundBookOrShelf(new File(uriPath), document.uri);
             }
-
-            @Override
-            public void onSearchComplete() {
-
-            }
-        };
-        traverseDirectoryEntries(context, rootUri, listener);
-        return count[0];
+        }
+        bookSearchListener.onSearchComplete();
     }
 
-    private static void traverseDirectoryEntries(Context context, Uri rootUri, BookSearchListener bookSearchListener) {
-        ContentResolver contentResolver = context.getContentResolver();
-//        for (UriPermission perm:contentResolver.getPersistedUriPermissions()) {
-//            Log.d(TAG, perm.getUri().toString());
-//        }
-        assert rootUri.getScheme().equals("content"); // SAF URIs only
-
-        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, DocumentsContract.getTreeDocumentId(rootUri));
-
-        // Keep track of our directory hierarchy
-        List<Uri> dirNodes = new LinkedList<>();
-        dirNodes.add(childrenUri);
-
-        while(!dirNodes.isEmpty()) {
-            childrenUri = dirNodes.remove(0); // get the item from top
-            Log.d(TAG, "node uri: " + childrenUri);
-            Cursor c = contentResolver.query(childrenUri, new String[]{
-                            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                            DocumentsContract.Document.COLUMN_MIME_TYPE},
-                    null,
-                    null,
-                    null);
-            try {
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        final String docId = c.getString(0);
-                        final String name = c.getString(1);
-                        final String mime = c.getString(2);
-                        Log.d(TAG, "name: " + name + ", mime: " + mime);
-
-                        if (isDirectory(mime)) {
-                            final Uri newNode = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, docId);
-                            dirNodes.add(newNode);
-                        } else {
-                            Uri uri = DocumentsContract.buildDocumentUriUsingTree(rootUri, docId);
-                            if (name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION) ||
-                                    name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION + ENCODED_FILE_EXTENSION)) {
-                                bookSearchListener.onFoundBundle(uri);
-                            } else if (IOUtilities.isBloomPubFile(name, true) ||
-                                    name.endsWith(BOOKSHELF_FILE_EXTENSION) ||
-                                    name.endsWith(BOOKSHELF_FILE_EXTENSION + ENCODED_FILE_EXTENSION)) {
-                                String uriPath = uri.getPath();
-                                if (uriPath != null)
-                                    bookSearchListener.onFoundBookOrShelf(new File(uriPath), uri);
-                            }
-                        }
-                    }
-                }
-            } finally {
-                closeQuietly(c);
-
-                bookSearchListener.onSearchComplete();
-            }
+    public static int countBooksIn(Context context, Uri rootUri) {
+        int count = 0;
+        for (SAFTreeSnapshot.Document document : SAFTreeSnapshot.get(rootUri).getFiles(context, false)) {
+            if (isBookOrShelfName(document.name))
+                count++;
         }
+        return count;
     }
 
-    // Util method to check if the mime type is a directory
-    private static boolean isDirectory(String mimeType) {
-        return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+    // The modification time of every book and shelf file in the tree, keyed by URI, as it is now.
+    public static Map<Uri, Long> getBookModifiedTimes(Context context, Uri rootUri) {
+        Map<Uri, Long> result = new HashMap<>();
+        for (SAFTreeSnapshot.Document document : SAFTreeSnapshot.get(rootUri).getFiles(context, true)) {
+            if (isBookOrShelfName(document.name))
+                result.put(document.uri, document.lastModified);
+        }
+        return result;
     }
 
-    // Util method to close a closeable
-    private static void closeQuietly(Closeable closeable) {
-        if (closeable != null) {
-            try {
-                closeable.close();
-            } catch (RuntimeException re) {
-                throw re;
-            } catch (Exception ignore) {
-                // ignore exception
-            }
-        }
+    private static boolean isBookOrShelfName(String name) {
+        return IOUtilities.isBloomPubFile(name, true) ||
+                name.endsWith(BOOKSHELF_FILE_EXTENSION) ||
+                name.endsWith(BOOKSHELF_FILE_EXTENSION + ENCODED_FILE_EXTENSION);
     }
 
     public static Uri fileUriFromDirectoryUri(Context context, Uri dir, String name) {
@@ -345,23 +254,22 @@ public class SAFUtilities {
         return dfFile.getUri();
     }
 
-    public static void copyUriToFile(Context context, Uri uri, File dest) {
-        try {
-            InputStream fs = context.getContentResolver().openInputStream(uri);
-            OutputStream os = new FileOutputStream(dest);
-            byte[] buf = new byte[4096];
-            int length;
-            while ((length = fs.read(buf)) > 0) os.write(buf, 0, length);
-            os.close();
-            fs.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
+    // Copy the document to a file in the books directory, which only appears (or is replaced)
+    // once it is complete (see StagedFile). Returns false if that didn't work.
+    public static boolean copyUriToFile(Context context, Uri uri, File dest) {
+        try (InputStream fs = context.getContentResolver().openInputStream(uri)) {
+            if (fs == null)
+                return false;
+            StagedFile.write(fs, dest, null, 4096);
+            return true;
+        } catch (IOException | SecurityException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
     public static void deleteUri(Context context, Uri uri) {
+        DocumentMetadata.forget(uri);
         try {
             DocumentsContract.deleteDocument(context.getContentResolver(),uri);
         } catch (FileNotFoundException e) {
@@ -1,9 +1,10 @@
 package org.sil.bloom.reader;
 
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.util.TypedValue;
 import android.view.ViewGroup;
 
@@ -14,21 +15,49 @@ import org.sil.bloom.reader.models.BookOrShelf;
 import org.sil.bloom.reader.BookListAdapter.ViewHolder;
 
 import java.util.Objects;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Used by the BookListAdapter to perform potentially slow operations associated with rendering
  * a BookOrShelf on a BookList on a background thread
  *
  * It sets the thumbnail image and toggles the speaker icon as appropriate
+ *
+ * These tasks don't use AsyncTask's default serial executor, which would process every row ever
+ * bound in order, so that after a fast scroll the rows on screen wait for all the ones scrolled
+ * past. Instead they share a small pool (which also limits how many books we have open at once)
+ * with a last-in-first-out queue, so the rows bound most recently, the visible ones, come first.
+ * A row's task is cancelled (and removed from the queue) when its ViewHolder is recycled or
+ * bound to another book.
+ *
+ * Thumbnails are decoded in the background at the size they are shown, and kept in the
+ * ThumbnailCache, so that binding a row we've shown before needs no work at all.
  */
 
 public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBookListItemViewExtrasTask.TaskResult> {
+    // Opening books is mostly I/O, but more than a couple at a time just makes them all slower.
+    private static final int MAX_BOOKS_OPEN = 2;
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_BOOKS_OPEN, MAX_BOOKS_OPEN, 10, TimeUnit.SECONDS, new LifoQueue(),
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "BookListItemExtras"));
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private ViewHolder viewHolder;
     private BookOrShelf bookOrShelf;
+    private final int thumbnailSize; // in pixels
 
     SetBookListItemViewExtrasTask(@NonNull ViewHolder viewHolder){
         this.viewHolder = viewHolder;
         this.bookOrShelf = viewHolder.bookOrShelf;
+        this.thumbnailSize = viewHolder.getContext().getResources().getDimensionPixelSize(R.dimen.book_list_thumbnail_size);
     }
 
     // The only method that needs to be called
@@ -37,14 +66,28 @@ public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBook
     public void setExtras() {
         setInitialImageView();
         clearSpeakerIcon();
+        cancelFor(viewHolder);
+        if (!bookOrShelf.isShelf() && setExtrasFromMemory())
+            return;
         if (!bookOrShelf.isShelf()){
             // Async method only applies to books
             // This causes doInBackground() to be executed in a background thread
             // which then calls onPostExecute() with the result on the UI thread
-            this.execute();
+            viewHolder.extrasTask = this;
+            this.executeOnExecutor(sExecutor);
         }
     }
 
+    // Cancel any work still to be done for this ViewHolder (e.g., because it is being recycled).
+    public static void cancelFor(@NonNull ViewHolder viewHolder) {
+        SetBookListItemViewExtrasTask task = viewHolder.extrasTask;
+        if (task == null)
+            return;
+        viewHolder.extrasTask = null;
+        if (task.cancel(false))
+            sExecutor.purge(); // drops it from the queue if it hadn't started
+    }
+
     // Synchronous method
     // Sets the proper thumbnail for shelves
     // and the fallback thumbnail for books
@@ -80,6 +123,21 @@ public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBook
         }
     }
 
+    // Synchronous method
+    // Shows whatever we already have in memory for the book. Returns true if that is everything,
+    // so there is nothing to do in the background.
+    private boolean setExtrasFromMemory() {
+        Bitmap thumbnail = ThumbnailCache.getInstance().get(bookOrShelf.pathOrUri);
+        if (thumbnail == null)
+            return false;
+        viewHolder.imageView.setImageBitmap(thumbnail);
+        Boolean hasAudio = bookOrShelf.getHasAudioIfKnown();
+        if (hasAudio == null)
+            return false;
+        viewHolder.speakerIcon.setImageAlpha(hasAudio ? 255 : 0);
+        return true;
+    }
+
     // Synchronous method
     private void clearSpeakerIcon() {
         viewHolder.speakerIcon.setImageAlpha(0); // transparent
@@ -93,9 +151,20 @@ public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBook
         // careful! anything that happens here MUST NOT expand our book into the currentBook
         // folder, as this could cause a race condition with code trying to open a book the
         // user has clicked on.
-        Uri imageUri = BookCollection.getThumbnail(viewHolder.getContext(), bookOrShelf);
+        if (isCancelled())
+            return null;
+        // One pass through the book gets the thumbnail and whether it has audio, unless we
+        // already knew them; after that, hasAudio() doesn't need to open the book again.
+        byte[] thumbnailData = BookCollection.loadBookCard(viewHolder.getContext(), bookOrShelf);
         boolean hasAudio = bookOrShelf.hasAudio(viewHolder.getContext());
-        return new TaskResult(imageUri, hasAudio);
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        Bitmap thumbnail = cache.get(bookOrShelf.pathOrUri);
+        if (thumbnail == null && thumbnailData != null && !isCancelled()) {
+            thumbnail = ThumbnailCache.decode(thumbnailData, thumbnailSize);
+            if (thumbnail != null)
+                cache.put(bookOrShelf.pathOrUri, thumbnail);
+        }
+        return new TaskResult(thumbnail, hasAudio);
     }
 
     // Set the thumbnail and speaker icon
@@ -104,20 +173,40 @@ public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBook
     protected void onPostExecute(TaskResult result) {
         // ViewHolder object can change books as the user scrolls
         // So we verify that this one still has the original book
+        if (viewHolder.extrasTask == this)
+            viewHolder.extrasTask = null;
         if (bookOrShelf == viewHolder.bookOrShelf) {
-            if (result.imageUri != null)
-                viewHolder.imageView.setImageURI(result.imageUri);
+            if (result.thumbnail != null)
+                viewHolder.imageView.setImageBitmap(result.thumbnail);
             int alpha = result.hasAudio ? 255 : 0;
             viewHolder.speakerIcon.setImageAlpha(alpha);
         }
     }
 
+    // Hands out the most recently added task first.
+    static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+
+        @Override
+        public boolean add(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+
+        @Override
+        public void put(Runnable runnable) throws InterruptedException {
+            putFirst(runnable);
+        }
+    }
+
     public static class TaskResult{
-        public Uri imageUri;
+        public Bitmap thumbnail;
         public boolean hasAudio;
 
-        TaskResult(Uri imageUri, boolean hasAudio) {
-            this.imageUri = imageUri;
+        TaskResult(Bitmap thumbnail, boolean hasAudio) {
+            this.thumbnail = thumbnail;
             this.hasAudio = hasAudio;
         }
     }
@@ -0,0 +1,158 @@
+package org.sil.bloom.reader;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+// A file we are writing that nobody else should see until it is complete.
+// Writing straight to the final path in the books directory means that, until we finish, anything
+// that looks there (the file watcher in BaseActivity, BookCollection loading, a reader opening the
+// book) can find a half-written book, decide it is corrupt, and rename it -BAD. Instead we write to
+// a hidden staging file in the same directory, make sure the data is actually on the disk, check it
+// if we know how, and only then rename it to the real name. A rename within a file system is atomic,
+// so other code sees either what was there before (or nothing) or the complete new file.
+public class StagedFile {
+    private static final String TAG = "StagedFile";
+    private static final String STAGING_SUFFIX = ".staging";
+    // The staging files this process is writing; any others were left by one that died.
+    private static final Set<String> sInUse = new HashSet<>();
+
+    private final File target;
+    private final File staging;
+    private FileOutputStream output;
+
+    public StagedFile(File target) {
+        // Starting with a dot hides it from media scanners, and the suffix means nothing takes
+        // it for a book or shelf.
+        this(target, new File(target.getParentFile(), "." + target.getName() + STAGING_SUFFIX));
+    }
+
+    // Use the given staging file, which must be on the same file system as the target
+    // (e.g., one kept to resume an interrupted transfer; see wifi.PartialTransfers).
+    public StagedFile(File target, File staging) {
+        this.target = target;
+        this.staging = staging;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    public File getStagingFile() {
+        return staging;
+    }
+
+    // Open the staging file for writing, either from scratch or adding to what is there already.
+    public OutputStream openOutputStream(boolean append) throws IOException {
+        File dir = staging.getParentFile();
+        if (dir != null && !dir.exists())
+            dir.mkdirs();
+        File targetDir = target.getParentFile();
+        if (targetDir != null && !targetDir.exists())
+            targetDir.mkdirs();
+        synchronized (sInUse) {
+            sInUse.add(staging.getPath());
+        }
+        output = new FileOutputStream(staging, append);
+        return output;
+    }
+
+    private void finished() {
+        synchronized (sInUse) {
+            sInUse.remove(staging.getPath());
+        }
+    }
+
+    // Delete the staging files left in the directory when we were killed while writing them.
+    public static void deleteLeftovers(File dir) {
+        File[] leftovers = dir.listFiles((d, name) -> name.startsWith(".") && name.endsWith(STAGING_SUFFIX));
+        if (leftovers == null)
+            return;
+        synchronized (sInUse) {
+            for (File leftover : leftovers) {
+                if (!sInUse.contains(leftover.getPath()) && leftover.delete())
+                    Log.i(TAG, "Deleted leftover " + leftover.getPath());
+            }
+        }
+    }
+
+    // Finish writing: make sure the data is on the disk, check it (if isValid is not null), and
+    // move it into place, replacing any existing file. If anything goes wrong, the staging file
+    // is deleted, the target is left as it was, and we throw.
+    public void commit(Predicate<File> isValid) throws IOException {
+        try {
+            if (output != null) {
+                output.flush();
+                // Otherwise, after a power failure, the rename may have reached the disk
+                // but not (all of) the data.
+                output.getFD().sync();
+                output.close();
+                output = null;
+            }
+            if (isValid != null && !isValid.test(staging))
+                throw new IOException("Invalid data for " + target.getPath());
+            if (!staging.renameTo(target))
+                throw new IOException("Could not rename " + staging.getPath() + " to " + target.getPath());
+            finished();
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    // Give up: throw away whatever we wrote.
+    public void abort() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close " + staging.getPath() + ": " + e.getMessage());
+            }
+            output = null;
+        }
+        staging.delete();
+        finished();
+    }
+
+    // Close the staging file without moving it into place, keeping what we wrote
+    // (for a transfer that may be resumed).
+    public void suspend() throws IOException {
+        finished();
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    // Copy the rest of the input to the target, by way of a staging file. The input is left open
+    // (it may be, for example, a tar archive with more entries to come).
+    // Returns the number of bytes copied.
+    public static long write(InputStream input, File target, Predicate<File> isValid, int bufferSize)
+            throws IOException {
+        StagedFile staged = new StagedFile(target);
+        long totalRead = 0;
+        try {
+            OutputStream out = staged.openOutputStream(false);
+            byte[] buffer = new byte[bufferSize];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                totalRead += read;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Copied " + totalRead + " bytes to " + staged.getStagingFile().getPath()
+                    + " before failing (" + e.getMessage() + ")");
+            staged.abort();
+            throw e;
+        }
+        staged.commit(isValid);
+        return totalRead;
+    }
+}
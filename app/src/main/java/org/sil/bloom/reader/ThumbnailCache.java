@@ -0,0 +1,78 @@
+package org.sil.bloom.reader;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+// An app-wide, size-limited cache of the thumbnails shown in the book list, decoded at the size
+// they are shown (see SetBookListItemViewExtrasTask). The thumbnails we copy out of books (see
+// ThumbnailPack) can be much bigger than the list's little image views, and decoding them (as
+// setImageURI() did, on the UI thread) every time a row is bound makes scrolling jerky. With this,
+// a thumbnail is decoded once, in the background, and rows scrolled back into view are set
+// straight from memory.
+// Keys are the book's pathOrUri. BookCollection.loadBookCard() removes a book's entry when it
+// stores a new thumbnail for it.
+public class ThumbnailCache extends LruCache<String, Bitmap> {
+    // A 64dp thumbnail is at most about 50K even on a very dense screen, so this holds a few hundred.
+    private static final int MAX_BUDGET = 12 * 1024 * 1024;
+
+    private static ThumbnailCache sInstance;
+
+    public static synchronized ThumbnailCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache((int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_BUDGET));
+        }
+        return sInstance;
+    }
+
+    private ThumbnailCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        return value.getByteCount();
+    }
+
+    // Decode the image (the content of a PNG or JPEG file) so that neither dimension is (much)
+    // bigger than targetSize pixels.
+    // Returns null if it can't be decoded.
+    public static Bitmap decode(byte[] data, int targetSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        // Subsampling by a power of two is cheap; it gets us to between one and two times the size.
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= targetSize)
+            sampleSize *= 2;
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null)
+            return null;
+        int largest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (largest <= targetSize)
+            return bitmap;
+        // Finish the job, so we don't hold more pixels in memory than we show.
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, bitmap.getWidth() * targetSize / largest),
+                Math.max(1, bitmap.getHeight() * targetSize / largest), true);
+        if (scaled != bitmap)
+            bitmap.recycle();
+        return scaled;
+    }
+
+    // Give back memory when the system asks (see BloomReaderApplication.onTrimMemory()).
+    // Thumbnails are cheap to decode again, so once we aren't visible we keep none of them.
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            evictAll();
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(maxSize() / 2);
+        }
+    }
+}
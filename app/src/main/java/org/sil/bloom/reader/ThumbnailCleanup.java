@@ -4,21 +4,24 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
 
+import org.sil.bloom.reader.models.ThumbnailPack;
+
 import java.io.File;
+import java.io.IOException;
 
 /*
-    We were storing thumbnails with the extension .png
-    but now that we have .jpg thumbnails too, we're keeping
-    the extension out of the filename.
+    Thumbnails used to be stored one file per book (at first with the extension .png,
+    later with no extension), with an empty file in the no-thumbs folder for each book that
+    had none. Now they are all in a ThumbnailPack.
 
-    This task cleans up any old thumbnails stored with the old
-    naming system.
+    The first time this task runs, it deletes all those old files. Every time, it compacts the
+    pack, forgetting books that no longer exist, so it doesn't keep growing.
  */
 
 
 public class ThumbnailCleanup extends AsyncTask<File, Void, Void> {
 
-    public static final String DID_THUMB_CLEANUP = "didThumbCleanupRight";
+    public static final String DID_THUMB_PACK_CLEANUP = "didThumbPackCleanup";
 
     private SharedPreferences values;
 
@@ -28,22 +31,30 @@ public class ThumbnailCleanup extends AsyncTask<File, Void, Void> {
 
     @Override
     public Void doInBackground(File... files){
-
-        // Only need to run this once
-        if (values.getBoolean(DID_THUMB_CLEANUP, false))
-            return null;
-
         File thumbsDirectory = files[0];
-        String[] filenames = thumbsDirectory.list();
-        for(String filename : filenames){
-            if (filename.endsWith(".png"))
-                new File(thumbsDirectory + File.separator + filename).delete();
-        }
 
-        SharedPreferences.Editor valuesEditor = values.edit();
-        valuesEditor.putBoolean(DID_THUMB_CLEANUP, true);
-        valuesEditor.apply();
+        // Only need to do this once
+        if (!values.getBoolean(DID_THUMB_PACK_CLEANUP, false)) {
+            String[] filenames = thumbsDirectory.list();
+            if (filenames != null) {
+                for (String filename : filenames) {
+                    if (filename.equals(ThumbnailPack.PACK_FILE_NAME) || filename.equals(".nomedia"))
+                        continue;
+                    IOUtilities.deleteFileOrDirectory(new File(thumbsDirectory, filename));
+                }
+            }
+            SharedPreferences.Editor valuesEditor = values.edit();
+            valuesEditor.putBoolean(DID_THUMB_PACK_CLEANUP, true);
+            valuesEditor.apply();
+        }
 
+        try {
+            // We can't cheaply tell whether a content URI still exists, so we keep those.
+            ThumbnailPack.getInstance(thumbsDirectory).compact(pathOrUri ->
+                    SAFUtilities.getContentUriIfItIsOne(pathOrUri) != null || new File(pathOrUri).exists());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         return null;
     }
 }
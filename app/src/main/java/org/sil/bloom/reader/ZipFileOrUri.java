@@ -2,14 +2,20 @@ package org.sil.bloom.reader;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
@@ -19,11 +25,14 @@ import java.util.zip.ZipInputStream;
 // This class helps hide whether the source of a bloom book is a file or a URI.
 // The book is conceptually decompressed into outputDir. If it comes from a file,
 // things are only decompressed there as they are wanted. If it comes from a URI,
-// we can only access the URI data sequentially, which makes it hopelessly slow
+// we normally get a seekable file descriptor for it (e.g., a book in BloomExternal on an SD card),
+// and ChannelZipFile lets us do the same. If all we can get is a stream, it is hopelessly slow
 // to extract files on demand, so the best we can do is extract them all immediately.
 public class ZipFileOrUri {
+    private static final String TAG = "ZipFileOrUri";
 
     ZipFile zipFile;
+    ChannelZipFile channelZip; // when we have a URI we can seek in
     String outputDir;
 
     public ZipFileOrUri(File input, String output) {
@@ -35,9 +44,11 @@ public class ZipFileOrUri {
         }
     }
     public ZipFileOrUri(Uri uri, Context context, String output) {
-        InputStream fs = null;
+        outputDir = output;
+        channelZip = tryOpenChannelZip(uri, context);
+        if (channelZip != null)
+            return;
         try {
-            outputDir = output;
             // All we can do is unzip the whole thing. I tried some code, which can be seen on the
             // SAFzipOneByOne branch, to extract individual files from the zip stream we can make
             // from the context and URI, but it is hopelessly slow; SAF seems to be forcing us to
@@ -49,14 +60,67 @@ public class ZipFileOrUri {
         }
     }
 
-    public File tryGetFile(String name) {
+    // Returns null if the provider can't give us a file descriptor we can seek in
+    // (or it doesn't look like a zip file we can read that way).
+    private static ChannelZipFile tryOpenChannelZip(Uri uri, Context context) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null)
+                return null;
+            FileChannel channel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+            return new ChannelZipFile(channel, descriptor);
+        } catch (IOException | SecurityException | IllegalArgumentException | UnsupportedOperationException e) {
+            // Typically a pipe rather than a file; fall back to extracting everything.
+            Log.w(TAG, "No random access to " + uri + ": " + e.getMessage());
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e1) {
+                    // nothing useful to do
+                }
+            }
+            return null;
+        }
+    }
+
+    // The stream for the named entry, or null if there is no such entry in the zip.
+    // Only for when we have random access.
+    private InputStream openEntry(String name) throws IOException {
         if (zipFile != null) {
+            final ZipEntry entry = zipFile.getEntry(name);
+            if (entry == null || entry.isDirectory())
+                return null;
+            return zipFile.getInputStream(entry);
+        }
+        final ChannelZipFile.Entry entry = channelZip.getEntry(name);
+        if (entry == null || entry.isDirectory())
+            return null;
+        return channelZip.getInputStream(entry);
+    }
+
+    // The names of all the entries in the zip (including folders, which end in a slash).
+    // Only for when we have random access.
+    private List<String> getEntryNames() {
+        List<String> result = new ArrayList<>();
+        if (zipFile != null) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements())
+                result.add(entries.nextElement().getName());
+        } else {
+            for (ChannelZipFile.Entry entry : channelZip.entries())
+                result.add(entry.name);
+        }
+        return result;
+    }
+
+    public File tryGetFile(String name) {
+        if (isZipFile()) {
             try {
-                final ZipEntry entry = zipFile.getEntry(name);
-                if (entry == null) {
+                InputStream zin = openEntry(name);
+                if (zin == null) {
                     return null;
                 }
-                InputStream zin = zipFile.getInputStream(entry);
                 return readFileFromInput(name, outputDir, zin);
             } catch (IOException e) {
                 // fall through and return null.
@@ -71,9 +135,122 @@ public class ZipFileOrUri {
         return null;
     }
 
+    // Like tryGetFile, but returns a stream reading the entry straight out of the zip file,
+    // without writing it to outputDir. (If we only have a URI we can't seek in, everything was
+    // extracted when we opened it, so we just open the extracted file.) Returns null if there is
+    // no such entry.
+    public InputStream tryOpenStream(String name) {
+        try {
+            if (isZipFile()) {
+                return openEntry(name);
+            }
+            File result = new File(outputDir + File.separator + name);
+            if (result.isFile()) {
+                return new FileInputStream(result);
+            }
+        } catch (IOException e) {
+            // fall through and return null.
+        }
+        return null;
+    }
+
+    // The uncompressed size of the named entry, or -1 if there is no such entry (or we can't tell).
+    public long getSize(String name) {
+        if (zipFile != null) {
+            final ZipEntry entry = zipFile.getEntry(name);
+            return entry == null ? -1 : entry.getSize();
+        }
+        if (channelZip != null) {
+            final ChannelZipFile.Entry entry = channelZip.getEntry(name);
+            return entry == null ? -1 : entry.getSize();
+        }
+        File result = new File(outputDir + File.separator + name);
+        return result.isFile() ? result.length() : -1;
+    }
+
+    // True if we have random access to the zip (rather than having extracted everything from a URI).
+    public boolean isZipFile() {
+        return zipFile != null || channelZip != null;
+    }
+
+    // Read the whole of the named entry into memory. Returns null if there is no such entry
+    // or something goes wrong.
+    public byte[] tryReadBytes(String name) {
+        long size = getSize(name);
+        if (size < 0 || size > Integer.MAX_VALUE)
+            return null;
+        InputStream input = tryOpenStream(name);
+        if (input == null)
+            return null;
+        try {
+            byte[] result = new byte[(int) size];
+            int offset = 0;
+            while (offset < result.length) {
+                int count = input.read(result, offset, result.length - offset);
+                if (count < 0)
+                    return null; // shorter than it claimed to be
+                offset += count;
+            }
+            return result;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // nothing useful to do
+            }
+        }
+    }
+
+    // The names of the entries at the top level of the zip that have the given extension.
+    // (Empty if we extracted everything from a URI.)
+    public List<String> getTopLevelNamesWithExtension(String extension) {
+        List<String> result = new ArrayList<>();
+        if (!isZipFile())
+            return result;
+        for (String name : getEntryNames()) {
+            if (name.indexOf("/") < 0 && name.endsWith(extension))
+                result.add(name);
+        }
+        return result;
+    }
+
+    // True if there is any file in the book whose path starts with the prefix (e.g., "audio/"),
+    // without extracting anything.
+    public boolean hasFileWithPrefix(String prefix) {
+        if (isZipFile()) {
+            for (String name : getEntryNames()) {
+                if (name.startsWith(prefix) && !name.endsWith("/"))
+                    return true;
+            }
+            return false;
+        }
+        if (outputDir == null)
+            return false;
+        int slash = prefix.lastIndexOf("/");
+        File folder = slash < 0 ? new File(outputDir) : new File(outputDir, prefix.substring(0, slash));
+        String namePrefix = prefix.substring(slash + 1);
+        String[] names = folder.list();
+        if (names == null)
+            return false;
+        for (String name : names) {
+            if (name.startsWith(namePrefix) && new File(folder, name).isFile())
+                return true;
+        }
+        return false;
+    }
+
     private File readFileFromInput(String name, String outputDir, InputStream zin) throws IOException {
 
         File output = new File(outputDir + File.separator + name);
+        // A book with an entry like audio/../../databases/x must not write outside outputDir.
+        // (The same check as IOUtilities.unzip.)
+        String outputDirPath = new File(outputDir).getCanonicalPath() + File.separator;
+        if (!output.getCanonicalPath().startsWith(outputDirPath)) {
+            zin.close();
+            throw new IOException("Zip entry is outside the book folder: " + name);
+        }
         IOUtilities.readFileFromInput(zin, output);
         return output;
     }
@@ -86,6 +263,13 @@ public class ZipFileOrUri {
                 e.printStackTrace();
             }
         }
+        if (channelZip != null) {
+            try {
+                channelZip.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // Strictly looks for something at the top level with this extension. If found, extracts it
@@ -106,16 +290,13 @@ public class ZipFileOrUri {
     // went wrong.)
     public File findFirstMatching(Predicate<String> condition, String newName) {
         try {
-            Enumeration<? extends ZipEntry> entries;
-            if (zipFile != null) {
-                entries = zipFile.entries();
-                while (entries.hasMoreElements()) {
-                    ZipEntry entry = entries.nextElement();
-                    if (entry.isDirectory())
+            if (isZipFile()) {
+                for (String name : getEntryNames()) {
+                    if (name.endsWith("/"))
                         continue;
-                    if (condition.test(entry.getName())) {
-                        InputStream zin = zipFile.getInputStream(entry);
-                        String destName = newName==null ? entry.getName() : newName;
+                    if (condition.test(name)) {
+                        InputStream zin = openEntry(name);
+                        String destName = newName==null ? name : newName;
                         return readFileFromInput(destName, outputDir, zin);
                     }
                 }
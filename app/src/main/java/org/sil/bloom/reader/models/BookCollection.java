@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.Looper;
 import android.util.Log;
 import android.util.Pair;
 import android.widget.Toast;
@@ -16,10 +17,12 @@ import org.sil.bloom.reader.BloomReaderApplication;
 import org.sil.bloom.reader.BloomShelfFileReader;
 import org.sil.bloom.reader.BookSearchListener;
 import org.sil.bloom.reader.SAFUtilities;
+import org.sil.bloom.reader.StagedFile;
 import org.sil.bloom.reader.TextFileContent;
 import org.sil.bloom.reader.IOUtilities;
 import org.sil.bloom.reader.InitializeLibraryTask;
 import org.sil.bloom.reader.R;
+import org.sil.bloom.reader.ThumbnailCache;
 import org.sil.bloom.reader.ThumbnailCleanup;
 
 import java.io.File;
@@ -27,18 +30,30 @@ import java.io.FileFilter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 public class BookCollection {
     public static final String THUMBS_DIR = ".thumbs";
-    public static final String NO_THUMBS_DIR = "no-thumbs";
 
     public static final String BOOKSHELF_PREFIX = "bookshelf:";
+    // Limits on how many book files we read at once while loading (see loadFiles()).
+    private static final int MAX_LOADING_THREADS = 8;
+    private static final int MAX_REMOVABLE_STORAGE_LOADING_THREADS = 2;
+    // How many newly loaded books we accumulate before showing them.
+    private static final int LOAD_BATCH_SIZE = 20;
     // All the books and shelves loaded from the folder on 'disk'.
     // CopyOnWriteArrayList allows thread-safe unsynchronized access.
     private final List<BookOrShelf> _booksAndShelves = new CopyOnWriteArrayList<BookOrShelf>();
@@ -47,6 +62,10 @@ public class BookCollection {
     // To minimise blocking threads, typically time-consuming modifications are performed
     // by getting a clone with getCopyOfFilteredBooksAndShelves() or just starting over with
     // an empty collection, then using replaceFilteredBooksAndShelves() to replace it atomically.
+    // While the library is loading, the adapter is told about changes row by row (see
+    // mergeIntoFilteredList()), so it must never see the list change without being told. During
+    // that time a new list made on another thread is put in place on the UI thread, along with
+    // the notification (see updateFilteredList()).
     // (Not using CopyOnWriteArrayList here as we need to sort it and I doubt this can be done
     // efficiently to a CopyOnWriteArrayList.)
     private List<BookOrShelf> mFilteredBooksAndShelves = new ArrayList<BookOrShelf>();
@@ -84,12 +103,48 @@ public class BookCollection {
         return addBookOrShelf(pathOrUri, null);
     }
 
+    // Like addBookOrShelfIfNeeded() for each of them, but updates the list that is shown just once.
+    // Returns the (fixed up) paths of all of them.
+    public List<String> addBooksOrShelvesIfNeeded(List<String> pathsOrUris) {
+        List<String> fixedPaths = new ArrayList<>(pathsOrUris.size());
+        List<BookOrShelf> newBooks = new ArrayList<>();
+        for (String pathOrUri : pathsOrUris) {
+            pathOrUri = fixBloomd(pathOrUri);
+            fixedPaths.add(pathOrUri);
+            if (getBookOrShelfByPath(pathOrUri) == null && !containsPath(newBooks, pathOrUri))
+                newBooks.add(makeBookOrShelf(pathOrUri, null));
+        }
+        if (!newBooks.isEmpty()) {
+            _booksAndShelves.addAll(newBooks);
+            // As in addBookOrShelf(), new books are shown even if the filter would hide them.
+            ArrayList<BookOrShelf> newList = getCopyOfFilteredBooksAndShelves();
+            newList.addAll(newBooks);
+            Collections.sort(newList, BookOrShelf.AlphanumComparator);
+            replaceFilteredBooksAndShelves(newList);
+        }
+        return fixedPaths;
+    }
+
+    private static boolean containsPath(List<BookOrShelf> books, String pathOrUri) {
+        for (BookOrShelf book : books) {
+            if (book.pathOrUri.equals(pathOrUri))
+                return true;
+        }
+        return false;
+    }
+
     private BookOrShelf makeBookOrShelf(String pathOrUri, TextFileContent metaFile) {
+        BookOrShelf bookOrShelf = parseBookOrShelf(pathOrUri, metaFile);
+        if (bookOrShelf.isShelf() && bookOrShelf.shelfId != null)
+            mShelfIds.add(bookOrShelf.shelfId);
+        return bookOrShelf;
+    }
+
+    // The part of makeBookOrShelf() that doesn't touch the collection, so it is safe on any thread.
+    private static BookOrShelf parseBookOrShelf(String pathOrUri, TextFileContent metaFile) {
         BookOrShelf bookOrShelf;
         if (pathOrUri.endsWith(IOUtilities.BOOKSHELF_FILE_EXTENSION)) {
             bookOrShelf = BloomShelfFileReader.parseShelfFile(pathOrUri);
-            if (bookOrShelf.shelfId != null)
-                mShelfIds.add(bookOrShelf.shelfId);
         } else {
             // book.
             bookOrShelf = new BookOrShelf(pathOrUri);
@@ -144,6 +199,99 @@ public class BookCollection {
         updateFilteredList();
     }
 
+    // Like addBooks(), but first removes some books, typically older versions of the new ones.
+    // While the initial load is going on, this doesn't rebuild mFilteredBooksAndShelves, but gets
+    // InitializeLibraryTask to merge in the changes on the UI thread (see mergeIntoFilteredList()),
+    // so that books appear in the list as they are found without the whole list being redrawn.
+    private void replaceBooks(Collection<BookOrShelf> oldBooks, List<BookOrShelf> newBooks) {
+        _booksAndShelves.removeAll(oldBooks);
+        _booksAndShelves.addAll(newBooks);
+        // One of the old ones might have been the only shelf with a particular id.
+        Set<String> oldShelfIds = new HashSet<String>(mShelfIds);
+        mShelfIds.clear();
+        for (BookOrShelf bookOrShelf : _booksAndShelves) {
+            if (bookOrShelf.isShelf() && bookOrShelf.shelfId != null)
+                mShelfIds.add(bookOrShelf.shelfId);
+        }
+        if (mInitializeTask == null) {
+            updateFilteredList();
+            return;
+        }
+        if (!mShelfIds.equals(oldShelfIds)) {
+            // Which books belong in the current filter may have changed, so start over.
+            updateFilteredList();
+            return;
+        }
+        ArrayList<BookOrShelf> booksToShow = new ArrayList<BookOrShelf>();
+        for (BookOrShelf bookOrShelf : newBooks) {
+            if (isBookInFilter(bookOrShelf, mFilter, mShelfIds))
+                booksToShow.add(bookOrShelf);
+        }
+        mInitializeTask.mergeIntoBookList(new ArrayList<BookOrShelf>(oldBooks), booksToShow);
+    }
+
+    // Told about each row that changes when mergeIntoFilteredList() updates the filtered list.
+    public interface FilteredListObserver {
+        void onItemRemoved(int position);
+        void onItemInserted(int position);
+    }
+
+    // Remove oldBooks from mFilteredBooksAndShelves, and insert newBooks (which should already
+    // have passed the filter) where they belong in sort order, telling the observer (if any)
+    // the position of each change in the order it was made. This is much cheaper than re-sorting
+    // the whole list, and lets the adapter animate just the rows that change. The changes are made
+    // to a copy, which replaces the list before the observer hears about any of them. It must
+    // still only be used on the UI thread: the adapter reads the list there, and must be told
+    // about the changes before it next looks, or it will find rows it doesn't expect.
+    public void mergeIntoFilteredList(List<BookOrShelf> oldBooks, List<BookOrShelf> newBooks,
+                                      FilteredListObserver observer) {
+        // Like everything else, change a copy and then put it in place, and only then tell the
+        // observer what we did (positions are in the order the changes were made: a removal
+        // shifts the positions of everything after it).
+        ArrayList<BookOrShelf> newList = getCopyOfFilteredBooksAndShelves();
+        List<Integer> changes = new ArrayList<>(); // -(position + 1) for a removal
+        for (BookOrShelf bookOrShelf : oldBooks) {
+            int index = newList.indexOf(bookOrShelf);
+            if (index < 0)
+                continue;
+            newList.remove(index);
+            changes.add(-(index + 1));
+        }
+        for (BookOrShelf bookOrShelf : newBooks) {
+            int index = findInsertionPoint(newList, bookOrShelf);
+            if (index < 0)
+                continue; // already there, e.g., because the whole list was rebuilt since it was loaded.
+            newList.add(index, bookOrShelf);
+            changes.add(index);
+        }
+        replaceFilteredBooksAndShelves(newList);
+        if (observer == null)
+            return;
+        for (int change : changes) {
+            if (change < 0)
+                observer.onItemRemoved(-change - 1);
+            else
+                observer.onItemInserted(change);
+        }
+    }
+
+    // Where bookOrShelf belongs in the sorted list, or -1 if it is already there.
+    static int findInsertionPoint(List<BookOrShelf> sortedList, BookOrShelf bookOrShelf) {
+        int index = Collections.binarySearch(sortedList, bookOrShelf, BookOrShelf.AlphanumComparator);
+        if (index < 0)
+            return -(index + 1);
+        // There may be several items that sort the same; check whether this exact one is one of them.
+        int first = index;
+        while (first > 0 && BookOrShelf.AlphanumComparator.compare(sortedList.get(first - 1), bookOrShelf) == 0)
+            first--;
+        for (int i = first; i < sortedList.size()
+                && BookOrShelf.AlphanumComparator.compare(sortedList.get(i), bookOrShelf) == 0; i++) {
+            if (sortedList.get(i) == bookOrShelf)
+                return -1;
+        }
+        return index;
+    }
+
     public BookOrShelf getBookOrShelfByPath(String path) {
         for (BookOrShelf bookOrShelf: _booksAndShelves) {
             if (bookOrShelf.pathOrUri.equals(path))
@@ -170,6 +318,8 @@ public class BookCollection {
         File[] booksDirs = getLocalAndRemovableBooksDirectories(context);
         mLocalBooksDirectory = booksDirs[0];
         mInitializeTask = task;
+        // If we were killed while copying a book in, what we had copied is still there.
+        StagedFile.deleteLeftovers(mLocalBooksDirectory);
         if (BloomReaderApplication.isFirstRunAfterInstallOrUpdate()){
             SampleBookLoader.CopySampleBooksFromAssetsIntoBooksFolder(context, mLocalBooksDirectory);
         }
@@ -277,6 +427,13 @@ public class BookCollection {
     private void loadFromDirectories(File[] booksDirs, Activity activity) {
         mShelfIds.clear();
         _booksAndShelves.clear();
+        // Show what we found last time right away. The rest of this method checks that against
+        // what is actually in the folders now, which only requires opening books that are new
+        // or have changed.
+        BookIndex bookIndex = BookIndex.getInstance(activity);
+        Map<String, BookIndex.Entry> indexEntries = bookIndex.loadAll();
+        Map<String, BookOrShelf> booksFromIndex = addBooksFromIndex(indexEntries, booksDirs);
+        Map<String, BookIndex.Entry> newIndexEntries = new HashMap<>();
         List<Uri> individualBooks = SAFUtilities.getBooksWithIndividualPermissions(activity);
         if (mInitializeTask != null) {
             int count = individualBooks.size() + (oldBloomDirectoryExistsButNoAccess(activity) ? 1 : 0);
@@ -328,8 +485,13 @@ public class BookCollection {
                 fixBloomd(f.getAbsolutePath());
             }
             for (File booksDir : booksDirs)
-                loadFromDirectory(booksDir, activity);
+                loadFromDirectory(booksDir, activity, indexEntries, booksFromIndex, newIndexEntries);
         }
+        // Whatever we showed from the index but didn't find this time has been deleted
+        // (or is in a folder we can no longer read directly).
+        if (!booksFromIndex.isEmpty())
+            replaceBooks(booksFromIndex.values(), new ArrayList<BookOrShelf>());
+        bookIndex.replaceAll(newIndexEntries.values());
         List<BookOrShelf> books = individualBooks.stream()
             .map(uri -> makeBookOrShelf(uri,null))
             .collect(Collectors.toList());
@@ -342,9 +504,42 @@ public class BookCollection {
         }
 
         addBooks(books);
+        // Anything else we remember checking has been deleted or replaced since (or was never
+        // added to the collection), so there's no point keeping it.
+        Set<String> pathsAndUris = new HashSet<>();
+        for (BookOrShelf bookOrShelf : _booksAndShelves)
+            pathsAndUris.add(bookOrShelf.pathOrUri);
+        bookIndex.evictFileChecksExcept(pathsAndUris);
+    }
+
+    // Add the books and shelves in the index that are in one of our book folders.
+    // Returns them keyed by path.
+    private Map<String, BookOrShelf> addBooksFromIndex(Map<String, BookIndex.Entry> indexEntries, File[] booksDirs) {
+        Map<String, BookOrShelf> result = new HashMap<>();
+        if (indexEntries.isEmpty() || booksDirs == null)
+            return result;
+        for (BookIndex.Entry entry : indexEntries.values()) {
+            for (File booksDir : booksDirs) {
+                if (entry.path.startsWith(booksDir.getAbsolutePath() + File.separator)) {
+                    BookOrShelf bookOrShelf = entry.toBookOrShelf();
+                    if (bookOrShelf.isShelf() && bookOrShelf.shelfId != null)
+                        mShelfIds.add(bookOrShelf.shelfId);
+                    result.put(entry.path, bookOrShelf);
+                    break;
+                }
+            }
+        }
+        // (While loading, this also gets the list to show them; see updateFilteredList().)
+        addBooks(new ArrayList<>(result.values()));
+        return result;
     }
 
-    private void loadFromDirectory(File directory, Activity activity) {
+    // Load the books and shelves in the directory. Ones that are unchanged since they were
+    // recorded in indexEntries are already in booksFromIndex (and in the collection); we just
+    // remove them from booksFromIndex, so what is left there at the end is the ones that are
+    // no longer present. Everything we find is recorded in newIndexEntries.
+    private void loadFromDirectory(File directory, Activity activity, Map<String, BookIndex.Entry> indexEntries,
+                                   Map<String, BookOrShelf> booksFromIndex, Map<String, BookIndex.Entry> newIndexEntries) {
         File[] files = IOUtilities.listFilesRecursively(directory, new FileFilter() {
             // Even when we DON'T HAVE PERMISSION to access files in the directory, we can see its
             // subdirectories!! But if we find no files, we're going to presume we have no permissions,
@@ -354,7 +549,6 @@ public class BookCollection {
                 return !file.isDirectory();
             }
         });
-        ArrayList<BookOrShelf> books = new ArrayList<BookOrShelf>();
         if (files == null || files.length == 0 && !BaseActivity.haveLegacyStoragePermission(activity)) {
             // files may be null, or spuriously have length zero, if we don't have permission to access the folder,
             // or even if we DO have permission, but it's a folder we can only access through
@@ -363,36 +557,146 @@ public class BookCollection {
             loadFromSAFDirectory(directory, activity);
             return;
         }
+        Map<String, BookOrShelf> replacedBooks = new HashMap<>();
+        List<File> filesToLoad = new ArrayList<>();
         for (int i = 0; i < files.length; i++) {
             final String name = files[i].getName();
-            TextFileContent metaFile = new TextFileContent("meta.json");
             if (!IOUtilities.isBloomPubFile(name)
                     && !name.endsWith(IOUtilities.BOOKSHELF_FILE_EXTENSION))
                 continue; // not a book (nor a shelf)!
             final String path = files[i].getAbsolutePath();
-            if (IOUtilities.isBloomPubFile(name) &&
-                    !IOUtilities.isValidZipFile(new File(path), IOUtilities.CHECK_BLOOMPUB, metaFile)) {
-                activity.runOnUiThread(new Runnable() {
-                    public void run() {
-                        String markedName = name + "-BAD";
-                        Log.w("BloomCollection", "Renaming invalid book file " + path + " to " + markedName);
-                        Context context = BloomReaderApplication.getBloomApplicationContext();
-                        String message = context.getString(R.string.renaming_invalid_book, markedName);
-                        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+            BookIndex.Entry indexEntry = indexEntries.get(path);
+            BookOrShelf fromIndex = booksFromIndex.remove(path);
+            if (fromIndex != null) {
+                if (indexEntry.matches(files[i])) {
+                    // Unchanged, and already in the collection. (The BookOrShelf may know more
+                    // than the index did by now, e.g., whether it has audio.)
+                    newIndexEntries.put(path, BookIndex.Entry.fromBookOrShelf(fromIndex, files[i]));
+                    if (mInitializeTask != null) {
+                        mInitializeTask.incrementBookProgress();
+                    }
+                    continue;
+                }
+                replacedBooks.put(path, fromIndex);
+            }
+            filesToLoad.add(files[i]);
+        }
+        loadFiles(filesToLoad, directory, activity, replacedBooks, newIndexEntries);
+    }
+
+    // Validate and parse these (new or changed) book and shelf files on a small pool of threads.
+    // Each one means reading the end of the file and unzipping meta.json, and much of that time
+    // is spent waiting for storage, so doing several at once helps a lot with a big library.
+    // As they complete, we add them to the collection in batches, removing the older versions
+    // of changed books (replacedBooks, keyed by path) as their replacements arrive.
+    private void loadFiles(List<File> files, File directory, Activity activity,
+                           Map<String, BookOrShelf> replacedBooks, Map<String, BookIndex.Entry> newIndexEntries) {
+        if (files.isEmpty())
+            return;
+        ExecutorService executor = Executors.newFixedThreadPool(getLoadingThreadCount(directory, files.size()));
+        CompletionService<Pair<File, BookOrShelf>> completionService = new ExecutorCompletionService<>(executor);
+        for (final File file : files) {
+            completionService.submit(() -> new Pair<>(file, loadBookOrShelfFile(file)));
+        }
+        ArrayList<BookOrShelf> oldBooks = new ArrayList<BookOrShelf>();
+        ArrayList<BookOrShelf> books = new ArrayList<BookOrShelf>();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Pair<File, BookOrShelf> result;
+                try {
+                    result = completionService.take().get();
+                } catch (ExecutionException e) {
+                    // Something unexpected went wrong with one file; carry on with the others.
+                    e.printStackTrace();
+                    if (mInitializeTask != null) {
+                        mInitializeTask.incrementBookProgress();
                     }
-                });
-                new File(path).renameTo(new File(path + "-BAD"));
+                    continue;
+                }
+                String path = result.first.getAbsolutePath();
+                BookOrShelf oldBook = replacedBooks.remove(path);
+                if (oldBook != null)
+                    oldBooks.add(oldBook);
+                if (result.second == null) {
+                    renameInvalidBookFile(activity, path);
+                } else {
+                    books.add(result.second);
+                    newIndexEntries.put(path, BookIndex.Entry.fromBookOrShelf(result.second, result.first));
+                }
                 if (mInitializeTask != null) {
                     mInitializeTask.incrementBookProgress();
                 }
-                continue;
-            }
-            books.add(makeBookOrShelf(path, metaFile));
-            if (mInitializeTask != null) {
-                mInitializeTask.incrementBookProgress();
+                if (books.size() + oldBooks.size() >= LOAD_BATCH_SIZE) {
+                    replaceBooks(oldBooks, books);
+                    oldBooks = new ArrayList<BookOrShelf>();
+                    books = new ArrayList<BookOrShelf>();
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
         }
-        addBooks(books);
+        // Any left in replacedBooks (only if we were interrupted) are gone too: their files changed.
+        oldBooks.addAll(replacedBooks.values());
+        replaceBooks(oldBooks, books);
+    }
+
+    // Runs on one of the loadFiles() threads. Returns null for a book that is not valid.
+    private static BookOrShelf loadBookOrShelfFile(File file) {
+        TextFileContent metaFile = new TextFileContent("meta.json");
+        // Only the cheap check here; FullValidationTask decompresses everything later,
+        // in the background.
+        if (IOUtilities.isBloomPubFile(file.getName()) &&
+                !IOUtilities.isValidZipFile(file, IOUtilities.CHECK_BLOOMPUB, metaFile,
+                        IOUtilities.VALIDATE_CENTRAL_DIRECTORY)) {
+            return null;
+        }
+        return parseBookOrShelf(file.getAbsolutePath(), metaFile);
+    }
+
+    // One thread per core (up to a limit) keeps the device's internal flash busy. Removable
+    // SD cards are typically much slower at interleaved reads, so we don't gain by hitting
+    // them with more than a couple of requests at a time.
+    private static int getLoadingThreadCount(File directory, int fileCount) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADING_THREADS);
+        try {
+            if (Environment.isExternalStorageRemovable(directory))
+                threads = Math.min(threads, MAX_REMOVABLE_STORAGE_LOADING_THREADS);
+        } catch (IllegalArgumentException e) {
+            // Not on a shared storage volume; probably our private internal storage.
+        }
+        return Math.max(1, Math.min(threads, fileCount));
+    }
+
+    // Rename a book file that turned out not to be valid so we won't try to load it again,
+    // and tell the user about it.
+    private static void renameInvalidBookFile(Activity activity, final String path) {
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                String markedName = new File(path).getName() + "-BAD";
+                Log.w("BloomCollection", "Renaming invalid book file " + path + " to " + markedName);
+                Context context = BloomReaderApplication.getBloomApplicationContext();
+                String message = context.getString(R.string.renaming_invalid_book, markedName);
+                Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+            }
+        });
+        new File(path).renameTo(new File(path + "-BAD"));
+    }
+
+    // Called when a book we already loaded fails a more thorough check than the one we did
+    // while loading it (see FullValidationTask).
+    public void removeInvalidBook(Activity activity, BookOrShelf book) {
+        renameInvalidBookFile(activity, book.pathOrUri);
+        _booksAndShelves.remove(book);
+        ArrayList<BookOrShelf> newList = getCopyOfFilteredBooksAndShelves();
+        if (newList.remove(book))
+            replaceFilteredBooksAndShelves(newList);
+    }
+
+    // A snapshot of all the books and shelves we loaded, whatever the current filter.
+    public List<BookOrShelf> getAllBooksAndShelves() {
+        return new ArrayList<BookOrShelf>(_booksAndShelves);
     }
 
     private void loadFromSAFDirectory(File directory, Activity activity) {
@@ -469,6 +773,12 @@ public class BookCollection {
             }
         }
         Collections.sort(newList, BookOrShelf.AlphanumComparator);
+        if (mInitializeTask != null && Looper.myLooper() != Looper.getMainLooper()) {
+            // Loading, on the loader thread: the adapter may be in the middle of row by row
+            // changes, so the new list goes in on the UI thread (with a notification).
+            mInitializeTask.showBookList(() -> replaceFilteredBooksAndShelves(newList));
+            return;
+        }
         // This atomic update guards against any other thread accessing the collection in an
         // incomplete state, while also preventing any delays from long locks.
         replaceFilteredBooksAndShelves(newList);
@@ -687,6 +997,9 @@ public class BookCollection {
             if (data.has("title")) {
                 bookOrShelf.title = data.getString("title");
             }
+            if (data.has("bookInstanceId")) {
+                bookOrShelf.bookInstanceId = data.getString("bookInstanceId");
+            }
         } catch (Exception e) {
             // Not sure about just catching everything like this. But the worst that happens if
             // a bloompub/bloomd does not contain valid meta.json from which we can extract tags is that
@@ -701,35 +1014,52 @@ public class BookCollection {
         setShelvesAndTitleOfBook(bookOrShelf, null);
     }
 
-    public static Uri getThumbnail(Context context, BookOrShelf book){
+    // Get what the book list shows for a book besides its name: returns the content of its thumbnail
+    // (null if it has none) and makes sure the book knows whether it has audio. Whatever we don't
+    // already have (in the ThumbnailPack, and hasAudio in the BookIndex, for this version of the book)
+    // comes from a single pass through the book (see BloomFileReader.readBookCard()), and all of
+    // it is saved together.
+    public static byte[] loadBookCard(Context context, BookOrShelf book) {
+        ThumbnailPack thumbnails;
         try {
-            File thumbsDirectory = getThumbsDirectory();
-            String thumbPath = thumbsDirectory.getPath() + File.separator + book.name;
-            File thumb = new File(thumbPath);
-            if (thumb.exists()) {
-                if (thumb.lastModified() < book.lastModified()) {
-                    thumb.delete();
-                    return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
-                }
-                return Uri.fromFile(thumb);
-            }
-
-            File noThumb = new File(thumbsDirectory.getPath() + File.separator + NO_THUMBS_DIR + File.separator + book.name);
-            if (noThumb.exists()){
-                if (noThumb.lastModified() < book.lastModified()) {
-                    noThumb.delete();
-                    return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
-                }
-                return null;
-            }
+            thumbnails = ThumbnailPack.getInstance(getThumbsDirectory());
+        } catch (IOException e) {
+            Log.e("BookCollection", "IOException getting thumbnails: " + e.getMessage());
+            return null;
+        }
+        long lastModified = book.lastModified();
+        byte[] thumbnail = thumbnails.get(book.pathOrUri, lastModified);
+        BookIndex bookIndex = BookIndex.getInstance(context);
+        Boolean hasAudio = book.getHasAudioIfKnown();
+        if (hasAudio == null) {
+            hasAudio = bookIndex.getHasAudio(book.pathOrUri, lastModified);
+            if (hasAudio != null)
+                book.setHasAudio(hasAudio);
+        }
+        if (hasAudio != null && thumbnail != null)
+            return thumbnail.length == 0 ? null : thumbnail;
 
-            return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
+        BloomFileReader.BookCard card;
+        try {
+            card = new BloomFileReader(context, book).readBookCard();
+        } catch (IOException e) {
+            Log.e("BookCollection", "IOException reading book card: " + e.getMessage());
+            return thumbnail == null || thumbnail.length == 0 ? null : thumbnail;
         }
-        catch (IOException e){
-            Log.e("BookCollection", "IOException getting thumbnail: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+        if (thumbnail == null) {
+            thumbnails.put(book.pathOrUri, lastModified, card.thumbnail);
+            ThumbnailCache.getInstance().remove(book.pathOrUri); // may be from an older version
+        }
+        BookOrShelf fromMeta = null;
+        if (card.metaJson != null) {
+            TextFileContent metaFile = new TextFileContent("meta.json");
+            metaFile.Content = card.metaJson;
+            fromMeta = new BookOrShelf(book.pathOrUri, book.name, book.uri);
+            setShelvesAndTitleOfBook(fromMeta, metaFile);
         }
+        book.setHasAudio(card.hasAudio);
+        bookIndex.recordBookCard(book.pathOrUri, lastModified, card.hasAudio, fromMeta);
+        return card.thumbnail;
     }
 
     private static File getThumbsDirectory() throws IOException {
@@ -740,8 +1070,6 @@ public class BookCollection {
             thumbsDirectory.mkdir();
             File noMedia = new File(thumbsDirectoryPath + File.separator + ".nomedia");
             noMedia.createNewFile();
-            File noThumb = new File(thumbsDirectoryPath + File.separator + NO_THUMBS_DIR);
-            noThumb.mkdir();
         }
         return thumbsDirectory;
     }
@@ -0,0 +1,443 @@
+package org.sil.bloom.reader.models;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.sil.bloom.reader.IOUtilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A persistent record of the books and shelves we found in our book folders last time, so that
+// startup can show the library without opening every book. (See BookCollection.loadFromDirectories,
+// which shows what is in the index at once, then checks it against what is actually on disk.)
+// Each record is keyed by the file's path, and is only trusted while the file still has the same
+// size and modification time.
+// The same database holds the fileChecks table, which remembers, for any book file or URI we've
+// looked at (not just the ones in our folders), whether it passed IOUtilities' full validity check
+// and whether it has audio. These used to be kept in SharedPreferences, keyed by path plus
+// modification time, which grew without limit and had to be parsed in full on first use. Here there
+// is one row per path, replaced when the file changes, and looked up individually. It also
+// remembers the version (from version.txt) of books we've been offered over WiFi (see wifi.BookVersions).
+// All of this is just a cache: if the schema changes we simply throw it away and rebuild it.
+public class BookIndex extends SQLiteOpenHelper {
+    private static final String TAG = "BookIndex";
+    private static final String DATABASE_NAME = "bookIndex.db";
+    private static final int DATABASE_VERSION = 3;
+
+    private static final String BOOKS_TABLE = "books";
+    private static final String COL_PATH = "path";
+    private static final String COL_SIZE = "size";
+    private static final String COL_LAST_MODIFIED = "lastModified";
+    private static final String COL_IS_SHELF = "isShelf";
+    private static final String COL_NAME = "name";
+    private static final String COL_BOOK_INSTANCE_ID = "bookInstanceId";
+    private static final String COL_TITLE = "title";
+    private static final String COL_SHELVES = "shelves";
+    private static final String COL_BRANDING = "brandingProjectName";
+    private static final String COL_HAS_AUDIO = "hasAudio";
+    private static final String COL_SHELF_ID = "shelfId";
+    private static final String COL_BACKGROUND_COLOR = "backgroundColor";
+
+    private static final String FILE_CHECKS_TABLE = "fileChecks";
+    private static final String COL_FULLY_VALIDATED = "fullyValidated";
+    private static final String COL_VERSION = "version";
+
+    // Shelf names come from tags, which can't contain this.
+    private static final String SHELF_SEPARATOR = "\n";
+
+    private static BookIndex sInstance;
+    private final Context mContext;
+
+    public static synchronized BookIndex getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new BookIndex(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private BookIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BOOKS_TABLE + " ("
+                + COL_PATH + " TEXT PRIMARY KEY, "
+                + COL_SIZE + " INTEGER NOT NULL, "
+                + COL_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + COL_IS_SHELF + " INTEGER NOT NULL, "
+                + COL_NAME + " TEXT, "
+                + COL_BOOK_INSTANCE_ID + " TEXT, "
+                + COL_TITLE + " TEXT, "
+                + COL_SHELVES + " TEXT, "
+                + COL_BRANDING + " TEXT, "
+                + COL_HAS_AUDIO + " INTEGER, " // null if we don't know yet
+                + COL_SHELF_ID + " TEXT, "
+                + COL_BACKGROUND_COLOR + " TEXT)");
+        db.execSQL("CREATE TABLE " + FILE_CHECKS_TABLE + " ("
+                + COL_PATH + " TEXT PRIMARY KEY, "
+                + COL_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + COL_FULLY_VALIDATED + " INTEGER NOT NULL DEFAULT 0, "
+                + COL_HAS_AUDIO + " INTEGER, "
+                + COL_VERSION + " TEXT) WITHOUT ROWID"); // from version.txt, if we've looked
+        migrateFromSharedPreferences(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // It's only a cache; start over.
+        db.execSQL("DROP TABLE IF EXISTS " + BOOKS_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + FILE_CHECKS_TABLE);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    // What we remember about one book or shelf file.
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final boolean isShelf;
+        public String name; // only stored for shelves; a book's name comes from its path
+        public String bookInstanceId;
+        public String title;
+        public String[] shelves = new String[0];
+        public String brandingProjectName;
+        public Boolean hasAudio;
+        public String shelfId;
+        public String backgroundColor;
+
+        public Entry(String path, long size, long lastModified, boolean isShelf) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.isShelf = isShelf;
+        }
+
+        // Is this still a good description of the file?
+        public boolean matches(File file) {
+            return file.lastModified() == lastModified && file.length() == size;
+        }
+
+        public static Entry fromBookOrShelf(BookOrShelf bookOrShelf, File file) {
+            Entry entry = new Entry(bookOrShelf.pathOrUri, file.length(), file.lastModified(), bookOrShelf.isShelf());
+            if (entry.isShelf)
+                entry.name = bookOrShelf.name;
+            entry.bookInstanceId = bookOrShelf.bookInstanceId;
+            entry.title = bookOrShelf.title;
+            entry.shelves = bookOrShelf.getBookshelves().toArray(new String[0]);
+            entry.brandingProjectName = bookOrShelf.brandingProjectName;
+            entry.hasAudio = bookOrShelf.getHasAudioIfKnown();
+            entry.shelfId = bookOrShelf.shelfId;
+            entry.backgroundColor = bookOrShelf.backgroundColor;
+            return entry;
+        }
+
+        public BookOrShelf toBookOrShelf() {
+            BookOrShelf bookOrShelf = new BookOrShelf(path, name);
+            bookOrShelf.bookInstanceId = bookInstanceId;
+            bookOrShelf.title = title;
+            for (String shelf : shelves)
+                bookOrShelf.addBookshelf(shelf);
+            bookOrShelf.brandingProjectName = brandingProjectName;
+            if (hasAudio != null)
+                bookOrShelf.setHasAudio(hasAudio);
+            bookOrShelf.shelfId = shelfId;
+            bookOrShelf.backgroundColor = backgroundColor;
+            return bookOrShelf;
+        }
+    }
+
+    // Everything in the index, keyed by path.
+    public Map<String, Entry> loadAll() {
+        Map<String, Entry> result = new HashMap<>();
+        try (Cursor c = getReadableDatabase().query(BOOKS_TABLE, null, null, null, null, null, null)) {
+            int pathIndex = c.getColumnIndexOrThrow(COL_PATH);
+            int sizeIndex = c.getColumnIndexOrThrow(COL_SIZE);
+            int lastModifiedIndex = c.getColumnIndexOrThrow(COL_LAST_MODIFIED);
+            int isShelfIndex = c.getColumnIndexOrThrow(COL_IS_SHELF);
+            int nameIndex = c.getColumnIndexOrThrow(COL_NAME);
+            int bookInstanceIdIndex = c.getColumnIndexOrThrow(COL_BOOK_INSTANCE_ID);
+            int titleIndex = c.getColumnIndexOrThrow(COL_TITLE);
+            int shelvesIndex = c.getColumnIndexOrThrow(COL_SHELVES);
+            int brandingIndex = c.getColumnIndexOrThrow(COL_BRANDING);
+            int hasAudioIndex = c.getColumnIndexOrThrow(COL_HAS_AUDIO);
+            int shelfIdIndex = c.getColumnIndexOrThrow(COL_SHELF_ID);
+            int backgroundColorIndex = c.getColumnIndexOrThrow(COL_BACKGROUND_COLOR);
+            while (c.moveToNext()) {
+                Entry entry = new Entry(c.getString(pathIndex), c.getLong(sizeIndex),
+                        c.getLong(lastModifiedIndex), c.getInt(isShelfIndex) != 0);
+                entry.name = c.getString(nameIndex);
+                entry.bookInstanceId = c.getString(bookInstanceIdIndex);
+                entry.title = c.getString(titleIndex);
+                String shelves = c.getString(shelvesIndex);
+                if (shelves != null && !shelves.isEmpty())
+                    entry.shelves = shelves.split(SHELF_SEPARATOR);
+                entry.brandingProjectName = c.getString(brandingIndex);
+                entry.hasAudio = c.isNull(hasAudioIndex) ? null : c.getInt(hasAudioIndex) != 0;
+                entry.shelfId = c.getString(shelfIdIndex);
+                entry.backgroundColor = c.getString(backgroundColorIndex);
+                result.put(entry.path, entry);
+            }
+        } catch (Exception e) {
+            // Whatever went wrong, we can always rebuild it from the files.
+            Log.e(TAG, "Could not load book index: " + e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+
+    // Replace the whole content of the index with these entries.
+    public void replaceAll(Collection<Entry> entries) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(BOOKS_TABLE, null, null);
+            for (Entry entry : entries)
+                db.insertWithOnConflict(BOOKS_TABLE, null, toContentValues(entry), SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not save book index: " + e.getMessage());
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Remember whether a book has audio, once we've gone to the trouble of finding out.
+    // Does nothing if the book isn't in the index (yet).
+    public void updateHasAudio(String path, boolean hasAudio) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COL_HAS_AUDIO, hasAudio ? 1 : 0);
+            getWritableDatabase().update(BOOKS_TABLE, values, COL_PATH + " = ?", new String[]{path});
+        } catch (Exception e) {
+            Log.e(TAG, "Could not update book index: " + e.getMessage());
+        }
+    }
+
+    // True if the file or URI (which currently has the given modification time) has already
+    // passed the full validity check.
+    public boolean isKnownValid(String pathOrUri, long lastModified) {
+        try (Cursor c = getReadableDatabase().query(FILE_CHECKS_TABLE, new String[]{COL_FULLY_VALIDATED},
+                COL_PATH + " = ? AND " + COL_LAST_MODIFIED + " = ?",
+                new String[]{pathOrUri, String.valueOf(lastModified)}, null, null, null)) {
+            return c.moveToFirst() && c.getInt(0) != 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read file checks: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void recordValid(String pathOrUri, long lastModified) {
+        ContentValues values = new ContentValues();
+        values.put(COL_FULLY_VALIDATED, 1);
+        updateFileCheck(pathOrUri, lastModified, values);
+    }
+
+    // Whether the file or URI (which currently has the given modification time) has audio,
+    // or null if we haven't found out since it last changed.
+    public Boolean getHasAudio(String pathOrUri, long lastModified) {
+        try (Cursor c = getReadableDatabase().query(FILE_CHECKS_TABLE, new String[]{COL_HAS_AUDIO},
+                COL_PATH + " = ? AND " + COL_LAST_MODIFIED + " = ?",
+                new String[]{pathOrUri, String.valueOf(lastModified)}, null, null, null)) {
+            if (!c.moveToFirst() || c.isNull(0))
+                return null;
+            return c.getInt(0) != 0;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read file checks: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void recordHasAudio(String pathOrUri, long lastModified, boolean hasAudio) {
+        ContentValues values = new ContentValues();
+        values.put(COL_HAS_AUDIO, hasAudio ? 1 : 0);
+        updateFileCheck(pathOrUri, lastModified, values);
+    }
+
+    // The version (from its version.txt) of the file, which currently has the given modification
+    // time, or null if we haven't found out since it last changed.
+    public String getVersion(String pathOrUri, long lastModified) {
+        try (Cursor c = getReadableDatabase().query(FILE_CHECKS_TABLE, new String[]{COL_VERSION},
+                COL_PATH + " = ? AND " + COL_LAST_MODIFIED + " = ?",
+                new String[]{pathOrUri, String.valueOf(lastModified)}, null, null, null)) {
+            if (!c.moveToFirst() || c.isNull(0))
+                return null;
+            return c.getString(0);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read file checks: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void recordVersion(String pathOrUri, long lastModified, String version) {
+        ContentValues values = new ContentValues();
+        values.put(COL_VERSION, version);
+        updateFileCheck(pathOrUri, lastModified, values);
+    }
+
+    // Save what a single pass through a book found out for the book list (see
+    // BookCollection.loadBookCard()) in one transaction: whether it has audio, and, if it had a
+    // meta.json, the title and shelves from there. The index entry is only updated if it is for
+    // the same version of the file. (Synchronized like updateFileCheck(), which it calls inside
+    // the transaction, so the two can't each be waiting for the other.)
+    public synchronized void recordBookCard(String pathOrUri, long lastModified, boolean hasAudio, BookOrShelf fromMeta) {
+        ContentValues bookValues = new ContentValues();
+        bookValues.put(COL_HAS_AUDIO, hasAudio ? 1 : 0);
+        if (fromMeta != null) {
+            bookValues.put(COL_BOOK_INSTANCE_ID, fromMeta.bookInstanceId);
+            bookValues.put(COL_TITLE, fromMeta.title);
+            bookValues.put(COL_SHELVES, String.join(SHELF_SEPARATOR, fromMeta.getBookshelves()));
+            bookValues.put(COL_BRANDING, fromMeta.brandingProjectName);
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            recordHasAudio(pathOrUri, lastModified, hasAudio);
+            db.update(BOOKS_TABLE, bookValues, COL_PATH + " = ? AND " + COL_LAST_MODIFIED + " = ?",
+                    new String[]{pathOrUri, String.valueOf(lastModified)});
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not update book index: " + e.getMessage());
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Set the given values in the row for pathOrUri. If the existing row is for a different
+    // modification time, everything we knew about the file is out of date, so start a new row.
+    private synchronized void updateFileCheck(String pathOrUri, long lastModified, ContentValues values) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            int updated = db.update(FILE_CHECKS_TABLE, values, COL_PATH + " = ? AND " + COL_LAST_MODIFIED + " = ?",
+                    new String[]{pathOrUri, String.valueOf(lastModified)});
+            if (updated == 0) {
+                ContentValues newRow = new ContentValues(values);
+                newRow.put(COL_PATH, pathOrUri);
+                newRow.put(COL_LAST_MODIFIED, lastModified);
+                db.insertWithOnConflict(FILE_CHECKS_TABLE, null, newRow, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not update file checks: " + e.getMessage());
+        }
+    }
+
+    // Forget about any files and URIs except the ones given (typically, everything currently
+    // in the collection).
+    public synchronized void evictFileChecksExcept(Set<String> pathsAndUrisToKeep) {
+        List<String> toRemove = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        try (Cursor c = db.query(FILE_CHECKS_TABLE, new String[]{COL_PATH}, null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                String path = c.getString(0);
+                if (!pathsAndUrisToKeep.contains(path))
+                    toRemove.add(path);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read file checks: " + e.getMessage());
+            return;
+        }
+        if (toRemove.isEmpty())
+            return;
+        db.beginTransaction();
+        try {
+            for (String path : toRemove)
+                db.delete(FILE_CHECKS_TABLE, COL_PATH + " = ?", new String[]{path});
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not evict file checks: " + e.getMessage());
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // One-time move of what we used to keep in SharedPreferences into the fileChecks table.
+    // IOUtilities.CHECKED_FILES_TAG held path -> modification time of files that passed the
+    // full check; BookOrShelf.SHARED_PREFERENCES_TAG held "path - modification time" -> a little
+    // JSON object with hasAudio. Only the newest entry for each path is worth keeping.
+    // Once copied, the old preferences are cleared so they don't have to be loaded again.
+    private void migrateFromSharedPreferences(SQLiteDatabase db) {
+        Map<String, ContentValues> rows = new HashMap<>();
+        SharedPreferences checkedFiles = mContext.getSharedPreferences(IOUtilities.CHECKED_FILES_TAG, 0);
+        for (Map.Entry<String, ?> item : checkedFiles.getAll().entrySet()) {
+            if (!(item.getValue() instanceof Long))
+                continue;
+            ContentValues row = getMigrationRow(rows, item.getKey(), (Long) item.getValue());
+            if (row != null)
+                row.put(COL_FULLY_VALIDATED, 1);
+        }
+        SharedPreferences bookMeta = mContext.getSharedPreferences(BookOrShelf.SHARED_PREFERENCES_TAG, 0);
+        for (Map.Entry<String, ?> item : bookMeta.getAll().entrySet()) {
+            String key = item.getKey();
+            int index = key.lastIndexOf(" - ");
+            if (index < 0 || !(item.getValue() instanceof String))
+                continue;
+            try {
+                long lastModified = Long.parseLong(key.substring(index + " - ".length()));
+                JSONObject meta = new JSONObject((String) item.getValue());
+                ContentValues row = getMigrationRow(rows, key.substring(0, index), lastModified);
+                if (row != null && meta.has(BookOrShelf.HAS_AUDIO))
+                    row.put(COL_HAS_AUDIO, meta.optBoolean(BookOrShelf.HAS_AUDIO) ? 1 : 0);
+            } catch (Exception e) {
+                // Just don't migrate this one.
+            }
+        }
+        for (ContentValues row : rows.values())
+            db.insertWithOnConflict(FILE_CHECKS_TABLE, null, row, SQLiteDatabase.CONFLICT_REPLACE);
+        checkedFiles.edit().clear().apply();
+        bookMeta.edit().clear().apply();
+    }
+
+    // The row we are building for path, unless we already have one for a later version of it.
+    private static ContentValues getMigrationRow(Map<String, ContentValues> rows, String path, long lastModified) {
+        ContentValues row = rows.get(path);
+        if (row != null) {
+            long existing = row.getAsLong(COL_LAST_MODIFIED);
+            if (existing > lastModified)
+                return null;
+            if (existing == lastModified)
+                return row;
+        }
+        row = new ContentValues();
+        row.put(COL_PATH, path);
+        row.put(COL_LAST_MODIFIED, lastModified);
+        rows.put(path, row);
+        return row;
+    }
+
+    private static ContentValues toContentValues(Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put(COL_PATH, entry.path);
+        values.put(COL_SIZE, entry.size);
+        values.put(COL_LAST_MODIFIED, entry.lastModified);
+        values.put(COL_IS_SHELF, entry.isShelf ? 1 : 0);
+        values.put(COL_NAME, entry.name);
+        values.put(COL_BOOK_INSTANCE_ID, entry.bookInstanceId);
+        values.put(COL_TITLE, entry.title);
+        values.put(COL_SHELVES, String.join(SHELF_SEPARATOR, entry.shelves));
+        values.put(COL_BRANDING, entry.brandingProjectName);
+        if (entry.hasAudio == null)
+            values.putNull(COL_HAS_AUDIO);
+        else
+            values.put(COL_HAS_AUDIO, entry.hasAudio ? 1 : 0);
+        values.put(COL_SHELF_ID, entry.shelfId);
+        values.put(COL_BACKGROUND_COLOR, entry.backgroundColor);
+        return values;
+    }
+}
@@ -1,7 +1,6 @@
 package org.sil.bloom.reader.models;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.net.Uri;
 
 import org.json.JSONException;
@@ -19,6 +18,7 @@ import java.util.Set;
 import static org.sil.bloom.reader.IOUtilities.BOOKSHELF_FILE_EXTENSION;
 
 public class BookOrShelf {
+    // No longer used except to migrate what was stored there into BookIndex.
     public static final String SHARED_PREFERENCES_TAG = "org.sil.bloom.reader.BookMetaJson";
     public static final String HAS_AUDIO = "hasAudio";
     public final String pathOrUri; // May actually be the toString() of a Uri (if it starts with content:)
@@ -32,6 +32,7 @@ public class BookOrShelf {
     // currently only applies to books
     public String brandingProjectName;
     public String title;
+    public String bookInstanceId;
     private JSONObject bookMeta; // Lazy loaded - Use getBookMeta() to access
 
     // This is set on certain shelves...so far only the one that stands for the external SD card
@@ -90,21 +91,22 @@ public class BookOrShelf {
         if (isShelf()) return new JSONObject(); // Only applies to books
 
         try {
-            SharedPreferences values = context.getSharedPreferences(SHARED_PREFERENCES_TAG, 0);
-            String bookMetaJson = values.getString(metaCacheKey(), null);
-            if (bookMetaJson != null) {
-                bookMeta = new JSONObject(bookMetaJson);
+            // The cache is keyed by the path and the modified timestamp on the file
+            BookIndex bookIndex = BookIndex.getInstance(context);
+            long lastModified = lastModified();
+            Boolean cachedHasAudio = bookIndex.getHasAudio(pathOrUri, lastModified);
+            bookMeta = new JSONObject();
+            if (cachedHasAudio != null) {
+                bookMeta.put(HAS_AUDIO, cachedHasAudio.booleanValue());
                 return bookMeta;
             }
 
             // BookMeta not found in cache - need to get it from file
-            bookMeta = new JSONObject();
             BloomFileReader reader = new BloomFileReader(context, pathOrUri, uri);
             boolean hasAudio = reader.hasAudio();
             bookMeta.put(HAS_AUDIO, hasAudio);
-            SharedPreferences.Editor valuesEditor = values.edit();
-            valuesEditor.putString(metaCacheKey(), bookMeta.toString());
-            valuesEditor.apply();
+            bookIndex.recordHasAudio(pathOrUri, lastModified, hasAudio);
+            bookIndex.updateHasAudio(pathOrUri, hasAudio);
             return bookMeta;
         }
         catch (JSONException e) {
@@ -113,19 +115,36 @@ public class BookOrShelf {
         }
     }
 
-    private String metaCacheKey() {
-        // A combination of the filepath and modified timestamp on the file
-        return pathOrUri + " - " + String.valueOf(lastModified());
-    }
-
     public boolean hasAudio(Context context) {
         return getBookMeta(context).optBoolean(HAS_AUDIO);
     }
 
+    // Used when we already know the answer, e.g. from the BookIndex.
+    public void setHasAudio(boolean hasAudio) {
+        try {
+            bookMeta = new JSONObject();
+            bookMeta.put(HAS_AUDIO, hasAudio);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            bookMeta = null;
+        }
+    }
+
+    // Null if we haven't (yet) found out whether the book has audio.
+    public Boolean getHasAudioIfKnown() {
+        if (bookMeta == null || !bookMeta.has(HAS_AUDIO))
+            return null;
+        return bookMeta.optBoolean(HAS_AUDIO);
+    }
+
     public void addBookshelf(String shelf) {
         bookshelves.add(shelf);
     }
 
+    public Set<String> getBookshelves() {
+        return bookshelves;
+    }
+
     public boolean isBookInShelf(String shelf) {
         return bookshelves.contains(shelf);
     }
@@ -0,0 +1,248 @@
+package org.sil.bloom.reader.models;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// All the book list's thumbnails in one file in the thumbs directory, instead of one file per book
+// (and an empty marker file per book without a thumbnail), which cost several file system calls
+// per row and left a directory that needed scanning to clean up.
+// The pack is a sequence of records, each holding a book's pathOrUri, the modification time of the
+// book the thumbnail came from, and the thumbnail itself (empty if the book has none). New records
+// are only ever appended; a later record for the same book replaces the earlier one, which becomes
+// wasted space until compact() rewrites the file with just the current records.
+// On opening, we scan the (memory-mapped) file once to build an index of where each book's latest
+// record is; after that, getting a thumbnail is a copy out of the mapping. Records appended since
+// are read from the file, until there are enough of them to be worth mapping the file again.
+public class ThumbnailPack {
+    private static final String TAG = "ThumbnailPack";
+    public static final String PACK_FILE_NAME = "thumbnails.pack";
+    private static final int RECORD_MARKER = 0x424c5448; // "BLTH"
+    // marker, key length, [key], modification time, data length, [data]
+    private static final int FIXED_HEADER_SIZE = 4 + 2 + 8 + 4;
+    // Not worth rewriting the file to recover less than this.
+    private static final long MIN_WASTE_TO_COMPACT = 256 * 1024;
+    // Mapping the whole file again after every new thumbnail would cost more than it saves.
+    private static final long MIN_UNMAPPED_TO_REMAP = 1024 * 1024;
+
+    // What get() returns for a book we know has no thumbnail.
+    public static final byte[] NO_THUMBNAIL = new byte[0];
+
+    private static class Record {
+        final long lastModified;
+        final long dataOffset;
+        final int dataLength;
+
+        Record(long lastModified, long dataOffset, int dataLength) {
+            this.lastModified = lastModified;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+
+        long recordLength(String key) {
+            return FIXED_HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length + dataLength;
+        }
+    }
+
+    private static ThumbnailPack sInstance;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mapped; // covers the file as it was when last mapped
+    private long length; // where the next record goes
+    private long wasted; // bytes taken up by records that have been replaced
+    private final Map<String, Record> index = new HashMap<>();
+
+    public static synchronized ThumbnailPack getInstance(File thumbsDirectory) throws IOException {
+        if (sInstance == null)
+            sInstance = new ThumbnailPack(new File(thumbsDirectory, PACK_FILE_NAME));
+        return sInstance;
+    }
+
+    private ThumbnailPack(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    // The thumbnail for this version of the book; NO_THUMBNAIL if we know it has none,
+    // or null if we don't know (yet).
+    public synchronized byte[] get(String pathOrUri, long lastModified) {
+        Record record = index.get(pathOrUri);
+        if (record == null || record.lastModified != lastModified || channel == null)
+            return null;
+        if (record.dataLength == 0)
+            return NO_THUMBNAIL;
+        try {
+            if (length - mapped.capacity() >= MIN_UNMAPPED_TO_REMAP)
+                remap();
+            return readData(record);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not read thumbnail: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Record the thumbnail (null or empty if it has none) for this version of the book.
+    public synchronized void put(String pathOrUri, long lastModified, byte[] thumbnail) {
+        byte[] data = thumbnail == null ? NO_THUMBNAIL : thumbnail;
+        if (channel == null)
+            return; // couldn't reopen after compacting
+        try {
+            long dataOffset = append(channel, length, pathOrUri, lastModified, data);
+            Record old = index.put(pathOrUri, new Record(lastModified, dataOffset, data.length));
+            if (old != null)
+                wasted += old.recordLength(pathOrUri);
+            length = dataOffset + data.length;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save thumbnail: " + e.getMessage());
+        }
+    }
+
+    // Forget about books that don't satisfy the condition (e.g., because they no longer exist),
+    // and, if that (and earlier replacements) leave enough space wasted, rewrite the file
+    // with just what is left.
+    public synchronized void compact(Predicate<String> keep) {
+        if (channel == null)
+            return;
+        for (Map.Entry<String, Record> entry : new HashMap<>(index).entrySet()) {
+            if (!keep.test(entry.getKey())) {
+                index.remove(entry.getKey());
+                wasted += entry.getValue().recordLength(entry.getKey());
+            }
+        }
+        if (wasted < MIN_WASTE_TO_COMPACT || wasted < length / 4)
+            return;
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (RandomAccessFile output = new RandomAccessFile(temp, "rw")) {
+                output.setLength(0);
+                FileChannel outputChannel = output.getChannel();
+                long position = 0;
+                for (Map.Entry<String, Record> entry : index.entrySet()) {
+                    Record record = entry.getValue();
+                    byte[] data = readData(record);
+                    long dataOffset = append(outputChannel, position, entry.getKey(), record.lastModified, data);
+                    position = dataOffset + data.length;
+                }
+                outputChannel.force(false);
+            }
+            close();
+            // (open() below rebuilds the index from the new file.)
+            if (!temp.renameTo(file))
+                throw new IOException("Could not replace " + file.getPath());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compact thumbnails: " + e.getMessage());
+            temp.delete();
+            try {
+                if (channel == null || !channel.isOpen())
+                    open();
+            } catch (IOException e1) {
+                Log.e(TAG, "Could not reopen thumbnails: " + e1.getMessage());
+            }
+            return;
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not reopen thumbnails: " + e.getMessage());
+        }
+    }
+
+    // Open the file and build the index from what is in it.
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        index.clear();
+        wasted = 0;
+        remap();
+        long position = 0;
+        long fileLength = mapped.capacity();
+        while (position + FIXED_HEADER_SIZE <= fileLength) {
+            mapped.position((int) position);
+            if (mapped.getInt() != RECORD_MARKER)
+                break;
+            int keyLength = mapped.getShort() & 0xffff;
+            if (position + FIXED_HEADER_SIZE + keyLength > fileLength)
+                break;
+            byte[] keyBytes = new byte[keyLength];
+            mapped.get(keyBytes);
+            long lastModified = mapped.getLong();
+            int dataLength = mapped.getInt();
+            long dataOffset = position + FIXED_HEADER_SIZE + keyLength;
+            if (dataLength < 0 || dataOffset + dataLength > fileLength)
+                break;
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            Record old = index.put(key, new Record(lastModified, dataOffset, dataLength));
+            if (old != null)
+                wasted += old.recordLength(key);
+            position = dataOffset + dataLength;
+        }
+        if (position < fileLength) {
+            // Whatever follows the last good record was never completely written (or is corrupt).
+            Log.w(TAG, "Discarding " + (fileLength - position) + " bytes at the end of the thumbnail pack");
+            channel.truncate(position);
+            remap();
+        }
+        length = position;
+    }
+
+    private byte[] readData(Record record) throws IOException {
+        byte[] result = new byte[record.dataLength];
+        if (record.dataOffset + record.dataLength <= mapped.capacity()) {
+            ByteBuffer source = mapped.duplicate();
+            source.position((int) record.dataOffset);
+            source.get(result);
+            return result;
+        }
+        // Appended since we last mapped the file.
+        ByteBuffer buffer = ByteBuffer.wrap(result);
+        long position = record.dataOffset;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0)
+                throw new IOException("Thumbnail pack is shorter than expected");
+            position += count;
+        }
+        return result;
+    }
+
+    private void remap() throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    private void close() throws IOException {
+        mapped = null;
+        channel = null;
+        randomAccessFile.close();
+    }
+
+    // Write a record at the given position; return the position of its data.
+    private static long append(FileChannel output, long position, String key, long lastModified, byte[] data)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xffff)
+            throw new IOException("Path too long for the thumbnail pack");
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_HEADER_SIZE + keyBytes.length + data.length);
+        buffer.putInt(RECORD_MARKER);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putLong(lastModified);
+        buffer.putInt(data.length);
+        buffer.put(data);
+        buffer.flip();
+        long writePosition = position;
+        while (buffer.hasRemaining())
+            writePosition += output.write(buffer, writePosition);
+        return position + FIXED_HEADER_SIZE + keyBytes.length;
+    }
+}
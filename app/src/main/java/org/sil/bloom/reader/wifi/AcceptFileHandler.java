@@ -3,11 +3,14 @@ package org.sil.bloom.reader.wifi;
 import android.content.Context;
 import android.net.Uri;
 
+import org.sil.bloom.reader.IOUtilities;
 import org.sil.bloom.reader.R;
+import org.sil.bloom.reader.StagedFile;
 import org.sil.bloom.reader.models.BookCollection;
 
 import cz.msebera.android.httpclient.HttpEntity;
 import cz.msebera.android.httpclient.HttpEntityEnclosingRequest;
+import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpException;
 import cz.msebera.android.httpclient.HttpRequest;
 import cz.msebera.android.httpclient.HttpResponse;
@@ -16,23 +19,30 @@ import cz.msebera.android.httpclient.protocol.HttpContext;
 import cz.msebera.android.httpclient.protocol.HttpRequestHandler;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Handles requests with urls like http://[ipaddress]:5914/putfile?path=bookTitle.bloompub
  * to write a file containing the data transmitted to a file in the local books directory.
  * This is configured as a request handler in SyncServer.
+ * The data is written first to a partial file (see PartialTransfers), which is only moved into
+ * place once it is complete and checked (see StagedFile). If the transfer is cut off, what we got is kept, and when we ask for
+ * the book again the desktop may send just the rest, with a header like
+ * Content-Range: bytes [start]-[end]/[total].
  * Slightly adapted from a similar file in HearThis Android
  */
 public class AcceptFileHandler implements HttpRequestHandler {
+    // Big enough that writing to the file isn't a bottleneck for a fast WiFi link.
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // The titles of the books we are receiving right now.
+    private static final Set<String> receiving = ConcurrentHashMap.newKeySet();
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-\\d+/(\\d+|\\*)");
     Context _parent;
     public AcceptFileHandler(Context parent)
     {
@@ -41,12 +51,29 @@ public class AcceptFileHandler implements HttpRequestHandler {
     @Override
     public void handle(HttpRequest request, HttpResponse response, HttpContext httpContext) throws HttpException, IOException {
         GetFromWiFiActivity.sendProgressMessage(_parent, _parent.getString(R.string.downloading) + "\n");
-        File baseDir = BookCollection.getLocalBooksDirectory();
         Uri uri = Uri.parse(request.getRequestLine().getUri());
         String filePath = uri.getQueryParameter("path");
 
+        String title = IOUtilities.stripBookFileExtension(new File(filePath).getName());
+        if (!receiving.add(title)) {
+            // We asked for it again because it was slow to start, and now the desktop is sending
+            // it twice. Both would write the same partial file, so turn this one away (and don't
+            // tell the listener, since the first one is still going).
+            response.setEntity(new StringEntity("failure"));
+            return;
+        }
+        try {
+            receive(request, response, filePath, title);
+        } finally {
+            receiving.remove(title);
+        }
+    }
+
+    private void receive(HttpRequest request, HttpResponse response, String filePath, String title) throws IOException {
+        IFileReceivedNotification listener = AcceptFileHandler.listener;
         if (listener != null)
             listener.receivingFile(filePath);
+        File baseDir = BookCollection.getLocalBooksDirectory();
         String path = baseDir  + "/" + filePath;
         HttpEntity entity = null;
         String result = "failure";
@@ -55,63 +82,60 @@ public class AcceptFileHandler implements HttpRequestHandler {
         if (entity != null) {
             try {
                 final InputStream input = entity.getContent();
-                final byte[] buffer = new byte[4096];
-                File file = new File(path);
-                File dir = file.getParentFile();
-                if (!dir.exists())
-                    dir.mkdirs();
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                File partial = PartialTransfers.getPartialFile(title);
+                long offset = getRangeStart(request);
+                if (offset < 0) {
+                    // Part of the book, but we can't tell which part. Treating it as the whole
+                    // book would throw away what we already have, so keep that for next time.
+                    throw new IOException("Could not understand Content-Range");
+                }
+                if (offset > 0 && offset != partial.length()) {
+                    // Not the rest of what we have; we can't make anything of it. Next time we'll
+                    // ask for the whole thing.
+                    PartialTransfers.discard(title);
+                    throw new IOException("Received data starting at " + offset + " but have " + partial.length());
+                }
+                StagedFile staged = new StagedFile(new File(path), partial);
                 boolean aborted = false;
-                FileOutputStream fs = new FileOutputStream(file);
+                OutputStream fs = staged.openOutputStream(offset > 0);
                 try {
-                    int bytesRead = 1; // to make first cycle go ahead
                     // We want to copy the input from WiFi to the output file.
-                    // We'd like to recover if the transmission is interrupted.
-                    // Ideally we'd just put a timeout on the socket that is reading the data,
-                    // but I can't find any way to access it.
-                    // Nor does it work to expect that an interrupted transmission will result
-                    // in a smaller number of bytes being available and successfully reading
-                    // however many there are, even zero. Even though we are only asking the
-                    // stream for (at most) the number of bytes it says are available, the
-                    // read can block forever if the connection is broken suddenly.
-                    // The technique actually used here, with thanks to one of the answers on
-                    // https://stackoverflow.com/questions/804951/is-it-possible-to-read-from-a-inputstream-with-a-timeout,
-                    // runs the read on (yet another) helper thread, forcing a timeout if we don't get some data
-                    // within a second.
-                    ExecutorService executor = Executors.newFixedThreadPool(2);
-                    Callable<Integer> readTask = new Callable<Integer>() {
-                        @Override
-                        public Integer call() throws Exception {
-                            return input.read(buffer, 0, Math.min(input.available(), buffer.length));
-                        }
-                    };
-                    while (bytesRead >= 0) {
-                        // This is a trick to get an exception thrown if it takes more than a second to
-                        // read a block of data.
-                        try {
-                            Future<Integer> future = executor.submit(readTask);
-                            bytesRead = future.get(1000, TimeUnit.MILLISECONDS);
-                        } catch (TimeoutException e) {
-                            // This also blocks. This should be rare, I think we can afford to
-                            // leave the thread stuck.
-                            //input.close(); // should clean up the thread attempting the read
-                            aborted = true;
-                            break;
-                        }
-
-                        if (bytesRead > 0) {
-                            fs.write(buffer, 0, bytesRead);
-                        }
+                    // We'd like to recover if the transmission is interrupted. SyncServer sets a
+                    // timeout on the socket, so if the connection is broken suddenly, a read that
+                    // gets no data for that long throws (a SocketTimeoutException) instead of
+                    // blocking forever.
+                    long expectedLength = entity.getContentLength(); // -1 if not known
+                    long total = 0;
+                    int bytesRead;
+                    while ((bytesRead = input.read(buffer)) >= 0) {
+                        fs.write(buffer, 0, bytesRead);
+                        total += bytesRead;
                     }
+                    if (expectedLength >= 0 && total != expectedLength)
+                        aborted = true; // connection closed early
                 } catch (Exception e) {
-                    // something unexpected went wrong while writing the output
+                    // timed out, or something unexpected went wrong while writing the output
                     e.printStackTrace();
                     aborted = true;
                 }
-                fs.close();
                 if (aborted) {
-                    file.delete(); // incomplete, useless, may cause exceptions trying to unzip.
+                    // Incomplete, and may cause exceptions trying to unzip. But if we know what
+                    // version of the book it is, we keep it to carry on from next time.
+                    if (PartialTransfers.getExpectedVersion(title) == null)
+                        staged.abort();
+                    else
+                        staged.suspend();
                 } else {
-                    result = "success"; // normal completion.
+                    final boolean resumed = offset > 0;
+                    try {
+                        // If the pieces don't make the book we asked for (perhaps it was republished
+                        // in between), it is thrown away and we start again next time.
+                        staged.commit(received -> isCompleteBook(received, title, resumed));
+                        result = "success"; // normal completion.
+                    } finally {
+                        PartialTransfers.discard(title);
+                    }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -122,13 +146,49 @@ public class AcceptFileHandler implements HttpRequestHandler {
             listener.receivedFile(path, result == "success");
     }
 
+    // Where the data in the request starts in the whole file, from its Content-Range header
+    // (or 0 if it has none, i.e., it is the whole file; -1 if we can't understand it).
+    private static long getRangeStart(HttpRequest request) {
+        Header header = request.getFirstHeader("Content-Range");
+        return header == null ? 0 : parseRangeStart(header.getValue());
+    }
+
+    // The start of a Content-Range like "bytes 1000-1999/2000", or -1 if we can't make sense of it.
+    static long parseRangeStart(String contentRange) {
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+        if (!matcher.matches())
+            return -1;
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return -1; // too many digits
+        }
+    }
+
+    // Check that what we received is a good book file, before anything else can see it.
+    // We decompress every entry: the central directory alone wouldn't show a bad join inside
+    // the data of a book put together from more than one transfer. Such a book must also be
+    // the version we asked for.
+    private static boolean isCompleteBook(File received, String title, boolean resumed) {
+        if (!IOUtilities.isValidZipFile(received, IOUtilities.CHECK_BLOOMPUB, null,
+                IOUtilities.VALIDATE_FULL))
+            return false;
+        if (!resumed)
+            return true;
+        String version = PartialTransfers.getExpectedVersion(title);
+        return version == null || NewBookListenerService.hasVersion(received, version);
+    }
+
     public interface IFileReceivedNotification {
         void receivingFile(String name);
         void receivedFile(String name, boolean success);
     }
 
-    static IFileReceivedNotification listener;
+    // Volatile because SyncServer may call handle() on any of its worker threads.
+    static volatile IFileReceivedNotification listener;
     public static void requestFileReceivedNotification(IFileReceivedNotification newListener) {
-        listener = newListener; // We only support notifying the most recent for now.
+        // Only one, but it is told the name of each file, so it can keep track of several
+        // transfers at once (see BookTransferScheduler).
+        listener = newListener;
     }
 }
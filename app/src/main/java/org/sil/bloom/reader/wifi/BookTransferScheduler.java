@@ -0,0 +1,190 @@
+package org.sil.bloom.reader.wifi;
+
+import android.os.SystemClock;
+
+import org.sil.bloom.reader.IOUtilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which of the books being advertised on the network to ask for, and when.
+ * NewBookListenerService tells us about every advertisement for a book we don't have (or have an
+ * old version of); AcceptFileHandler tells us when each book starts and finishes arriving.
+ * We used to ignore all advertisements while receiving a book, and a few more after asking for
+ * one, so a desktop advertising a whole collection got its books to us one at a time with
+ * several seconds doing nothing in between. Now we keep a queue of the books we want, ask for a
+ * few at once, and ask for the next as soon as one finishes. Each transfer is tracked by title
+ * (the name of the file the desktop sends, without its extension).
+ */
+class BookTransferScheduler implements AcceptFileHandler.IFileReceivedNotification {
+    // Each book comes on its own connection, and SyncServer can handle a few at once; but they
+    // all share the WiFi, so asking for more doesn't make them arrive much sooner.
+    static final int MAX_CONCURRENT_TRANSFERS = 2;
+    // If a book we asked for hasn't started arriving after this long, we ask again.
+    // (Books are typically advertised every second, and it can take a few seconds for a
+    // transfer to get going.) Time while another book is arriving doesn't count, since the
+    // desktop may send them one at a time.
+    static final long REQUEST_TIMEOUT_MS = 4000;
+    // A book we haven't seen advertised for this long has probably stopped being offered.
+    static final long STALE_ADVERTISEMENT_MS = 10000;
+
+    // What the scheduler needs NewBookListenerService to do.
+    interface Requester {
+        void requestBook(String senderIP, String title, String version);
+        void bookReceived(String title, String path, boolean success);
+        // Nothing is being received or waited for.
+        void allTransfersFinished();
+    }
+
+    private static class Transfer {
+        final String title;
+        String senderIP;
+        String version;
+        long lastAdvertised;
+        long requestedAt;
+        boolean receiving;
+
+        Transfer(String title) {
+            this.title = title;
+        }
+    }
+
+    // A book to ask for, as it was when we decided to (the Transfer may change once we let go
+    // of the lock).
+    private static class Request {
+        final String senderIP;
+        final String title;
+        final String version;
+
+        Request(String senderIP, String title, String version) {
+            this.senderIP = senderIP;
+            this.title = title;
+            this.version = version;
+        }
+    }
+
+    private final Requester requester;
+    private final LongSupplier clock;
+    // Books we want, in the order we first saw them advertised.
+    private final LinkedHashMap<String, Transfer> waiting = new LinkedHashMap<>();
+    // Books we have asked for (and may be receiving).
+    private final Map<String, Transfer> active = new HashMap<>();
+
+    BookTransferScheduler(Requester requester) {
+        this(requester, SystemClock::elapsedRealtime);
+    }
+
+    // Unit tests supply their own clock.
+    BookTransferScheduler(Requester requester, LongSupplier clock) {
+        this.requester = requester;
+        this.clock = clock;
+    }
+
+    // True if we are already waiting for, or getting, this book.
+    synchronized boolean isWanted(String title) {
+        return waiting.containsKey(title) || active.containsKey(title);
+    }
+
+    // Called for each advertisement of a book we want.
+    void advertised(String senderIP, String title, String version) {
+        List<Request> requests;
+        synchronized (this) {
+            Transfer transfer = active.get(title);
+            if (transfer == null)
+                transfer = waiting.get(title);
+            if (transfer == null) {
+                transfer = new Transfer(title);
+                waiting.put(title, transfer);
+            }
+            transfer.senderIP = senderIP;
+            transfer.version = version;
+            transfer.lastAdvertised = clock.getAsLong();
+            requests = startMore();
+        }
+        send(requests);
+    }
+
+    @Override
+    public synchronized void receivingFile(String name) {
+        String title = getTitle(name);
+        Transfer transfer = active.get(title);
+        if (transfer == null) {
+            // Not one we asked for (or we'd given up waiting); track it anyway, so we don't
+            // ask for it again while it is arriving.
+            transfer = waiting.remove(title);
+            if (transfer == null)
+                transfer = new Transfer(title);
+            active.put(title, transfer);
+        }
+        transfer.receiving = true;
+    }
+
+    @Override
+    public void receivedFile(String name, boolean success) {
+        String title = getTitle(name);
+        List<Request> requests;
+        synchronized (this) {
+            active.remove(title);
+            requests = startMore();
+        }
+        send(requests);
+        requester.bookReceived(title, name, success);
+        synchronized (this) {
+            if (active.isEmpty())
+                requester.allTransfersFinished();
+        }
+    }
+
+    // Decide which of the waiting books to ask for, as many as we have room for. The caller asks
+    // for them (see send()) once it has released the lock: asking writes to the file system, and
+    // AcceptFileHandler's threads must not have to wait for that to report their progress.
+    private List<Request> startMore() {
+        List<Request> requests = new ArrayList<>();
+        long now = clock.getAsLong();
+        boolean busy = false;
+        for (Transfer transfer : active.values())
+            busy |= transfer.receiving;
+        // Requests that got no response go back in the queue, to be asked for again.
+        for (Iterator<Transfer> it = active.values().iterator(); it.hasNext(); ) {
+            Transfer transfer = it.next();
+            if (transfer.receiving)
+                continue;
+            if (busy) {
+                // The desktop may be sending us another book before it gets to this one.
+                transfer.requestedAt = now;
+            } else if (now - transfer.requestedAt > REQUEST_TIMEOUT_MS) {
+                it.remove();
+                waiting.put(transfer.title, transfer);
+            }
+        }
+        for (Iterator<Transfer> it = waiting.values().iterator();
+             it.hasNext() && active.size() < MAX_CONCURRENT_TRANSFERS; ) {
+            Transfer transfer = it.next();
+            it.remove();
+            if (now - transfer.lastAdvertised > STALE_ADVERTISEMENT_MS)
+                continue; // If it turns up again, we'll queue it again.
+            transfer.requestedAt = now;
+            transfer.receiving = false;
+            active.put(transfer.title, transfer);
+            requests.add(new Request(transfer.senderIP, transfer.title, transfer.version));
+        }
+        return requests;
+    }
+
+    private void send(List<Request> requests) {
+        for (Request request : requests)
+            requester.requestBook(request.senderIP, request.title, request.version);
+    }
+
+    // name may be a bare file name or a full path
+    private static String getTitle(String name) {
+        return IOUtilities.stripBookFileExtension(new File(name).getName());
+    }
+}
@@ -0,0 +1,70 @@
+package org.sil.bloom.reader.wifi;
+
+import android.content.Context;
+
+import org.sil.bloom.reader.models.BookIndex;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the version (the content of version.txt) of each local book that has been advertised
+ * over WiFi, so that deciding whether an advertised book is one we already have doesn't mean
+ * opening the book's zip file for every advertisement. A version is only trusted while the book
+ * file keeps the modification time it had when we read it.
+ * Versions are kept in memory by title, and in the BookIndex (by path) so we don't have to open
+ * every book again next time the user receives books.
+ */
+class BookVersions {
+    private static class Entry {
+        final String path;
+        final long lastModified;
+        final String version;
+
+        Entry(String path, long lastModified, String version) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.version = version;
+        }
+    }
+
+    private static BookVersions sInstance;
+
+    private final BookIndex bookIndex;
+    private final ConcurrentHashMap<String, Entry> versions = new ConcurrentHashMap<>();
+
+    static synchronized BookVersions getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new BookVersions(BookIndex.getInstance(context));
+        return sInstance;
+    }
+
+    private BookVersions(BookIndex bookIndex) {
+        this.bookIndex = bookIndex;
+    }
+
+    // The version of the given book file (the local copy of the book with this title),
+    // or null if it doesn't have one.
+    String getVersion(String title, File bookFile) {
+        String path = bookFile.getAbsolutePath();
+        long lastModified = bookFile.lastModified();
+        Entry entry = versions.get(title);
+        if (entry != null && entry.lastModified == lastModified && entry.path.equals(path))
+            return entry.version;
+        String version = bookIndex.getVersion(path, lastModified);
+        if (version == null) {
+            version = NewBookListenerService.readVersion(bookFile);
+            if (version != null)
+                bookIndex.recordVersion(path, lastModified, version);
+        }
+        // (If it has no version, remembering that in memory saves looking again every second.)
+        versions.put(title, new Entry(path, lastModified, version));
+        return version;
+    }
+
+    // Called when we have just written a new version of the book.
+    void bookWritten(String title, File bookFile) {
+        versions.remove(title);
+        getVersion(title, bookFile);
+    }
+}
@@ -6,6 +6,7 @@ import android.content.Intent;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.IBinder;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 
 import org.json.JSONException;
@@ -18,12 +19,13 @@ import org.sil.bloom.reader.models.BookCollection;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
@@ -39,20 +41,22 @@ import static org.sil.bloom.reader.BloomReaderApplication.getOurDeviceName;
  */
 
 public class NewBookListenerService extends Service {
-    DatagramSocket socket;
+    volatile DatagramSocket socket;
     Thread UDPBroadcastThread;
-    private Boolean shouldRestartSocketListen=true;
+    private volatile boolean shouldRestartSocketListen=true;
+    // How long to wait before trying again if something goes wrong with the socket.
+    private static final long SOCKET_RETRY_DELAY_MS = 1000;
 
     // port on which the desktop is listening for our book request.
     // Must match Bloom Desktop UDPListener._portToListen.
     // Must be different from ports in NewBookListenerService.startListenForUDPBroadcast
     // and SyncServer._serverPort.
     static int desktopPort = 5915;
-    boolean gettingBook = false;
     boolean httpServiceRunning = false;
-    int addsToSkipBeforeRetry;
     boolean reportedVersionProblem = false;
-    private Set<String> _announcedBooks = new HashSet<String>();
+    // Synchronized because books are reported received on SyncServer's threads.
+    private Set<String> _announcedBooks = Collections.synchronizedSet(new HashSet<String>());
+    private final BookTransferScheduler scheduler = new BookTransferScheduler(new TransferRequester());
     WifiManager.MulticastLock multicastLock;
 
     @Nullable
@@ -61,32 +65,56 @@ public class NewBookListenerService extends Service {
         return null;
     }
 
-    private void listen(Integer port) throws Exception {
+    // Listen for advertisements until stopListen() is called. We keep one socket, one multicast
+    // lock and one buffer for the whole time, which may be an hour while a class sits on the
+    // "Receive books via WiFi" screen. (We used to make new ones for every packet, which cost
+    // battery, and advertisements arriving while there was no socket were lost.)
+    private void listen(int port) {
         byte[] recvBuf = new byte[15000];
-        if (socket == null || socket.isClosed()) {
-            socket = new DatagramSocket(port);
-            socket.setBroadcast(true);
-        }
+        DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
 
         // This seems to have become necessary for receiving a packet around Android 8.
         WifiManager wifi;
         wifi = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         multicastLock = wifi.createMulticastLock("lock");
+        multicastLock.setReferenceCounted(false);
         multicastLock.acquire();
 
         try {
-            DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
-            //Log.e("UDP", "Waiting for UDP broadcast");
-            socket.receive(packet);
-            if (gettingBook)
-                return; // ignore new advertisements while downloading. Will receive again later.
-            if (addsToSkipBeforeRetry > 0) {
-                // We ignore a few adds after requesting a book before we (hopefully) start receiving.
-                addsToSkipBeforeRetry--;
-                return;
+            while (shouldRestartSocketListen) {
+                try {
+                    if (socket == null || socket.isClosed()) {
+                        socket = new DatagramSocket(port);
+                        socket.setBroadcast(true);
+                    }
+                    //Log.e("UDP", "Waiting for UDP broadcast");
+                    packet.setLength(recvBuf.length); // receive() shrinks it to fit the last packet
+                    socket.receive(packet);
+                    handleAdvertisement(packet);
+                } catch (IOException e) {
+                    // Usually stopListen() closing the socket. Otherwise, start again with a new one.
+                    if (shouldRestartSocketListen) {
+                        e.printStackTrace();
+                        if (socket != null)
+                            socket.close();
+                        SystemClock.sleep(SOCKET_RETRY_DELAY_MS);
+                    }
+                }
             }
+        }
+        finally {
+            if (socket != null)
+                socket.close();
+            multicastLock.release();
+        }
+    }
+
+    private void handleAdvertisement(DatagramPacket packet) {
+        try {
             String senderIP = packet.getAddress().getHostAddress();
-            String message = new String(packet.getData()).trim();
+            // Only the part of the buffer this packet filled.
+            String message = new String(packet.getData(), packet.getOffset(), packet.getLength(),
+                    StandardCharsets.UTF_8).trim();
             JSONObject data = new JSONObject(message);
             String title = data.getString("title");
             String newBookVersion = data.getString("version");
@@ -114,6 +142,11 @@ public class NewBookListenerService extends Service {
                 }
                 return;
             }
+            if (scheduler.isWanted(title)) {
+                // Already waiting for it or getting it; the scheduler decides whether to ask again.
+                scheduler.advertised(senderIP, title, newBookVersion);
+                return;
+            }
             File bookFile = IOUtilities.getBookFileIfExists(title);
             boolean bookExists = bookFile != null;
             // If the book doesn't exist it can't be up to date.
@@ -141,56 +174,48 @@ public class NewBookListenerService extends Service {
                     GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.found_new_version), title, sender) + "\n");
                 else
                     GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.found_file), title, sender) + "\n");
-                // It can take a few seconds for the transfer to get going. We won't ask for this again unless
-                // we don't start getting it in a reasonable time.
-                addsToSkipBeforeRetry = 3;
-                getBook(senderIP, title);
+                // The scheduler asks for it as soon as it isn't busy with too many other books.
+                scheduler.advertised(senderIP, title, newBookVersion);
             }
-        } catch (JSONException e) {
+        } catch (JSONException | NumberFormatException e) {
             // This can stay in production. Just ignore any broadcast packet that doesn't have
             // the data we expect.
             e.printStackTrace();
         }
-        finally {
-            socket.close();
-            multicastLock.release();
-        }
     }
 
-    // Private class to handle receiving notification from AcceptFileHandler.
-    // I can't figure out how to make an anonymous class which can keep a reference to itself
-    // for use in removing itself later. The notification is sent when the transfer of a book
-    // is complete.
-    class EndOfTransferListener implements AcceptFileHandler.IFileReceivedNotification {
-
-        NewBookListenerService _parent;
-        String _title;
-        public EndOfTransferListener(NewBookListenerService parent, String title) {
-            _parent = parent;
-            _title = title;
-        }
-
+    // Does what BookTransferScheduler decides: asks for books, and reports them arriving.
+    // (Its methods are called on the UDP listening thread and on SyncServer's threads.)
+    private class TransferRequester implements BookTransferScheduler.Requester {
         @Override
-        public void receivingFile(String name) {
-            // Once the receive actually starts, don't start more receives until we deal with this.
-            // If our request for the book didn't produce a response, we'll ask again when we get
-            // the next notification.
-            gettingBook = true;
+        public void requestBook(String senderIP, String title, String version) {
+            getBook(senderIP, title, version);
         }
 
         @Override
-        public void receivedFile(String name, boolean success) {
-            _parent.transferComplete(success);
+        public void bookReceived(String title, String path, boolean success) {
+            transferComplete(success);
             if (success) {
+                // Find out its version now, rather than when the next advertisement arrives.
+                BookVersions.getInstance(NewBookListenerService.this).bookWritten(title, new File(path));
                 // We won't announce subsequent up-to-date advertisements for this book.
-                _announcedBooks.add(_title);
-                GetFromWiFiActivity.sendBookLoadedMessage(_parent, name);
+                _announcedBooks.add(title);
+                GetFromWiFiActivity.sendBookLoadedMessage(NewBookListenerService.this, path);
             }
         }
+
+        @Override
+        public void allTransfersFinished() {
+            // We can stop listening for file transfers and notifications from the desktop.
+            stopSyncServer();
+        }
     }
 
-    private void getBook(String sourceIP, String title) {
-        AcceptFileHandler.requestFileReceivedNotification(new EndOfTransferListener(this, title));
+    private void getBook(String sourceIP, String title, String version) {
+        AcceptFileHandler.requestFileReceivedNotification(scheduler);
+        // If an earlier attempt to get this version of the book was cut off, we ask the desktop
+        // to send only the rest of it.
+        long resumeFrom = PartialTransfers.prepare(title, version);
         // This server will be sent the actual book data (and the final notification)
         startSyncServer();
         // Send one package to the desktop to request the book. Its contents tell the desktop
@@ -199,10 +224,13 @@ public class NewBookListenerService extends Service {
         sendMessageTask.desktopIpAddress = sourceIP;
         sendMessageTask.ourIpAddress = getOurIpAddress();
         sendMessageTask.ourDeviceName = getOurDeviceName();
+        sendMessageTask.title = title;
+        sendMessageTask.version = version;
+        sendMessageTask.resumeFrom = resumeFrom;
         sendMessageTask.execute();
     }
 
-    private void startSyncServer() {
+    private synchronized void startSyncServer() {
         if (httpServiceRunning)
             return;
         Intent serviceIntent = new Intent(this, SyncService.class);
@@ -210,7 +238,7 @@ public class NewBookListenerService extends Service {
         httpServiceRunning = true;
     }
 
-    private void stopSyncServer() {
+    private synchronized void stopSyncServer() {
         if (!httpServiceRunning)
             return;
         Intent serviceIntent = new Intent(this, SyncService.class);
@@ -218,12 +246,8 @@ public class NewBookListenerService extends Service {
         httpServiceRunning = false;
     }
 
-    // Called via EndOfTransferListener when desktop sends transfer complete notification.
+    // Called via TransferRequester when the desktop has finished sending a book.
     private void transferComplete(boolean success) {
-        // We can stop listening for file transfers and notifications from the desktop.
-        stopSyncServer();
-        gettingBook = false;
-
         final int resultId = success ? R.string.done : R.string.transferFailed;
         GetFromWiFiActivity.sendProgressMessage(this, getString(resultId) + "\n\n");
 
@@ -268,27 +292,36 @@ public class NewBookListenerService extends Service {
     // the same version of the same book. BloomReader does not interpret the version information,
     // just compares what is in the  version.txt in the .bloompub/.bloomd file it has (if any) with what it
     // got in the new advertisement.
+    // The answer is almost always in BookVersions' cache, so we don't open the book for every
+    // advertisement (several a second, with a few desktops advertising a few books each).
     boolean IsBookUpToDate(File bookFile, String title, String newBookVersion) {
+        String oldVersion = BookVersions.getInstance(this).getVersion(title, bookFile);
+        return oldVersion != null && oldVersion.equals(normalizeVersion(newBookVersion));
+    }
+
+    // True if the book file has the given version (as advertised by the desktop).
+    static boolean hasVersion(File bookFile, String newBookVersion) {
+        String oldVersion = readVersion(bookFile);
+        return oldVersion != null && oldVersion.equals(normalizeVersion(newBookVersion));
+    }
+
+    // The version recorded in the book file, or null if it has none.
+    static String readVersion(File bookFile) {
         // "version.txt" must match the name given in Bloom Desktop BookCompressor.CompressDirectory()
         byte[] oldShaBytes = IOUtilities.ExtractZipEntry(bookFile, "version.txt");
         if (oldShaBytes == null)
-            return false;
-        String oldSha = "";
-        try {
-            oldSha = new String(oldShaBytes, "UTF-8");
-            // Some versions of Bloom accidentally put out a version.txt starting with a BOM
-            if (oldSha.startsWith("\uFEFF")) {
-                oldSha = oldSha.substring(1);
-            }
-            // I don't think the version code in the Bloom publisher advertisement ever had a BOM,
-            // but let's make it robust anyway.
-            if (newBookVersion.startsWith("\uFEFF")) {
-                newBookVersion = newBookVersion.substring(1);
-            }
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            return null;
+        // Some versions of Bloom accidentally put out a version.txt starting with a BOM
+        return normalizeVersion(new String(oldShaBytes, StandardCharsets.UTF_8));
+    }
+
+    private static String normalizeVersion(String version) {
+        // I don't think the version code in the Bloom publisher advertisement ever had a BOM,
+        // but let's make it robust anyway.
+        if (version.startsWith("\uFEFF")) {
+            version = version.substring(1);
         }
-        return oldSha.equals(newBookVersion); // not ==, they are different objects.
+        return version;
     }
 
     public static final String BROADCAST_BOOK_LISTENER_PROGRESS = "org.sil.bloomreader.booklistener.progress";
@@ -296,14 +329,15 @@ public class NewBookListenerService extends Service {
     public static final String BROADCAST_BOOK_LOADED = "org.sil.bloomreader.booklistener.book.loaded";
 
     void startListenForUDPBroadcast() {
+        if (UDPBroadcastThread != null && UDPBroadcastThread.isAlive())
+            return; // onStartCommand() may be called again while we're listening.
         UDPBroadcastThread = new Thread(new Runnable() {
             public void run() {
                 try {
-                    Integer port = 5913; // Must match port in Bloom class WiFiAdvertiser
-                    while (shouldRestartSocketListen) { //
-                        listen(port);
-                    }
-                    //if (!shouldListenForUDPBroadcast) throw new ThreadDeath();
+                    // Here rather than in onStartCommand() to keep the file system off the UI thread.
+                    PartialTransfers.deleteStale();
+                    int port = 5913; // Must match port in Bloom class WiFiAdvertiser
+                    listen(port);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -338,6 +372,9 @@ public class NewBookListenerService extends Service {
         public String ourIpAddress;
         public String desktopIpAddress;
         public String ourDeviceName;
+        public String title;
+        public String version;
+        public long resumeFrom;
         @Override
         protected Void doInBackground(Void... params) {
             try {
@@ -349,6 +386,12 @@ public class NewBookListenerService extends Service {
                     // in the event handler for _wifiListener.NewMessageReceived.
                     data.put("deviceAddress", ourIpAddress);
                     data.put("deviceName", ourDeviceName);
+                    // Which book we're asking for, and how much of it we already have. A desktop
+                    // that supports resuming sends just the rest, with a Content-Range header (see
+                    // AcceptFileHandler); older ones ignore these and send the whole book.
+                    data.put("title", title);
+                    data.put("version", version);
+                    data.put("resumeFrom", resumeFrom);
                 } catch (JSONException e) {
                     // How could these fail?? But compiler demands we catch this.
                     e.printStackTrace();
@@ -0,0 +1,105 @@
+package org.sil.bloom.reader.wifi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sil.bloom.reader.IOUtilities;
+import org.sil.bloom.reader.models.BookCollection;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Keeps track of books partly received over WiFi, so that if the connection drops part way
+ * through a big book, the next attempt can carry on from where it stopped instead of starting
+ * again from nothing (which, on a bad enough network, might never succeed).
+ * While a book is being received, it is written to [title].partial in a hidden folder in the
+ * books directory (so moving it into place when it's complete is just a rename). Alongside is
+ * a little manifest, [title].json, recording which version of the book (as advertised by the
+ * desktop) the data belongs to. The bytes we already have are simply the length of the partial file.
+ */
+class PartialTransfers {
+    private static final String PARTIAL_FOLDER = ".partial";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String MANIFEST_SUFFIX = ".json";
+    private static final String VERSION_KEY = "version";
+    // What we have of a book nobody has sent us for this long is unlikely to be wanted again
+    // (and may be a big chunk of the user's storage).
+    private static final long STALE_AGE_MS = 3L * 24 * 60 * 60 * 1000;
+
+    private static File getFolder() {
+        File folder = new File(BookCollection.getLocalBooksDirectory(), PARTIAL_FOLDER);
+        folder.mkdirs();
+        return folder;
+    }
+
+    static File getPartialFile(String title) {
+        return new File(getFolder(), title + PARTIAL_SUFFIX);
+    }
+
+    private static File getManifestFile(String title) {
+        return new File(getFolder(), title + MANIFEST_SUFFIX);
+    }
+
+    // Called as we ask for a book. Returns how much of this version of it we already have
+    // (zero if none, in which case anything we had of another version is thrown away).
+    static synchronized long prepare(String title, String version) {
+        File partial = getPartialFile(title);
+        if (version.equals(getExpectedVersion(title)))
+            return partial.length();
+        partial.delete();
+        try {
+            JSONObject manifest = new JSONObject();
+            manifest.put(VERSION_KEY, version);
+            try (FileWriter writer = new FileWriter(getManifestFile(title))) {
+                writer.write(manifest.toString());
+            }
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            getManifestFile(title).delete();
+        }
+        return 0;
+    }
+
+    // The version of the book we asked for, or null if we didn't (or have lost track of it).
+    static String getExpectedVersion(String title) {
+        File manifestFile = getManifestFile(title);
+        if (!manifestFile.exists())
+            return null;
+        try {
+            return new JSONObject(IOUtilities.FileToString(manifestFile)).getString(VERSION_KEY);
+        } catch (JSONException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    // Forget about the book: it is complete (and has been moved into place), or what we had is useless.
+    static synchronized void discard(String title) {
+        getPartialFile(title).delete();
+        getManifestFile(title).delete();
+    }
+
+    // Throw away books we started receiving but have neither finished nor asked for again for
+    // a few days, e.g. because the desktop stopped offering them.
+    static synchronized void deleteStale() {
+        File[] files = getFolder().listFiles();
+        if (files == null)
+            return;
+        long cutoff = System.currentTimeMillis() - STALE_AGE_MS;
+        for (File file : files) {
+            String name = file.getName();
+            String title;
+            if (name.endsWith(PARTIAL_SUFFIX))
+                title = name.substring(0, name.length() - PARTIAL_SUFFIX.length());
+            else if (name.endsWith(MANIFEST_SUFFIX))
+                title = name.substring(0, name.length() - MANIFEST_SUFFIX.length());
+            else
+                continue;
+            // Its partial file and manifest go together, and both must be old.
+            File partial = getPartialFile(title);
+            File manifest = getManifestFile(title);
+            if (Math.max(partial.lastModified(), manifest.lastModified()) < cutoff)
+                discard(title);
+        }
+    }
+}
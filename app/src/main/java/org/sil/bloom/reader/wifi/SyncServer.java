@@ -3,8 +3,12 @@ package org.sil.bloom.reader.wifi;
 import android.content.Context;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import cz.msebera.android.httpclient.HttpException;
 import cz.msebera.android.httpclient.HttpRequest;
@@ -31,13 +35,24 @@ import cz.msebera.android.httpclient.protocol.ResponseServer;
  * more of the process and Bloom serve them up?
  * One advantage is that this approach puts most of the work here, so the sending side...
  * which we eventually want in the Reader as well as the desktop...may be simpler.
+ * Each connection is handled on a small pool of worker threads, so one slow or stalled sender
+ * doesn't hold up the others, and this thread just accepts connections. Sockets have a read
+ * timeout, so a transfer that stops part way fails (see AcceptFileHandler) instead of hanging.
  */
 public class SyncServer extends Thread {
     Integer _serverPort = 5914; // Must match literal in BloomReaderPublisher.SendBookToWiFi()
+    // More than enough for the few devices (or books) that send to us at once.
+    private static final int MAX_CONNECTIONS = 4;
+    // A transfer is abandoned if no data arrives for this long.
+    static final int READ_TIMEOUT_MS = 5000;
+    // Big socket buffers let the sender keep a fast WiFi link busy.
+    private static final int SOCKET_BUFFER_SIZE = 256 * 1024;
+    private static final int CONNECTION_BUFFER_SIZE = 64 * 1024;
     private ImmutableHttpProcessor httpproc = null;
-    private BasicHttpContext httpContext = null;
     private HttpService httpService = null;
-    boolean _running;
+    private ExecutorService _workers;
+    private ServerSocket _serverSocket;
+    volatile boolean _running;
     Context _parent;
 
     public SyncServer(Context parent)
@@ -45,7 +60,6 @@ public class SyncServer extends Thread {
         super("BloomReaderAndroidServer");
         _parent = parent;
         httpproc = new ImmutableHttpProcessor(new ResponseDate(), new ResponseServer(), new ResponseContent(), new ResponseConnControl());
-        httpContext = new BasicHttpContext();
 
         HttpRequestHandlerMapper requestMapper = new HttpRequestHandlerMapper() {
             @Override
@@ -69,9 +83,17 @@ public class SyncServer extends Thread {
         super.start();
     }
 
-    // Clear flag so main loop will terminate after next request.
+    // Clear flag and stop accepting connections, so main loop will terminate.
+    // Transfers already under way are allowed to finish.
     public synchronized void stopThread(){
         _running = false;
+        if (_serverSocket != null) {
+            try {
+                _serverSocket.close(); // makes accept() throw
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // Method executed in thread when super.start() is called.
@@ -79,27 +101,27 @@ public class SyncServer extends Thread {
     public void run() {
         super.run();
 
+        _workers = Executors.newFixedThreadPool(MAX_CONNECTIONS);
         try {
-            ServerSocket serverSocket = new ServerSocket(_serverPort);
-
+            ServerSocket serverSocket = new ServerSocket();
             serverSocket.setReuseAddress(true);
+            // Must be set before binding to allow a TCP window bigger than 64K.
+            serverSocket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            serverSocket.bind(new InetSocketAddress(_serverPort));
+            synchronized (this) {
+                _serverSocket = serverSocket;
+                if (!_running)
+                    serverSocket.close(); // stopped before we got going
+            }
 
             while(_running){
                 try {
                     final Socket socket = serverSocket.accept();
-
-                    // Constructor requires a buffer size. I found ONE example at
-                    // http://www.programcreek.com/java-api-examples/index.php?api=org.apache.http.impl.DefaultBHttpServerConnection
-                    // but otherwise no hint anywhere of what the buffer is for or what size might be reasonable.
-                    DefaultBHttpServerConnection serverConnection = new DefaultBHttpServerConnection(8*1024);
-
-                    serverConnection.bind(socket);
-
-                    httpService.handleRequest(serverConnection, httpContext);
-
-                    serverConnection.shutdown();
-                } catch (IOException | HttpException e) {
-                    e.printStackTrace();
+                    socket.setSoTimeout(READ_TIMEOUT_MS);
+                    _workers.execute(() -> handleConnection(socket));
+                } catch (IOException | RejectedExecutionException e) {
+                    if (_running)
+                        e.printStackTrace();
                 }
             }
 
@@ -108,5 +130,30 @@ public class SyncServer extends Thread {
         catch (IOException e) {
             e.printStackTrace();
         }
+        finally {
+            _workers.shutdown(); // lets transfers under way finish
+        }
+    }
+
+    // Runs on one of the worker threads.
+    private void handleConnection(Socket socket) {
+        // Constructor requires a buffer size. I found ONE example at
+        // http://www.programcreek.com/java-api-examples/index.php?api=org.apache.http.impl.DefaultBHttpServerConnection
+        // but otherwise no hint anywhere of what the buffer is for or what size might be reasonable.
+        // (It buffers reading from the socket, so bigger means fewer, more efficient reads.)
+        DefaultBHttpServerConnection serverConnection = new DefaultBHttpServerConnection(CONNECTION_BUFFER_SIZE);
+        try {
+            serverConnection.bind(socket);
+            // HttpService is thread-safe, but the context isn't, so each connection gets its own.
+            httpService.handleRequest(serverConnection, new BasicHttpContext());
+        } catch (IOException | HttpException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                serverConnection.shutdown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
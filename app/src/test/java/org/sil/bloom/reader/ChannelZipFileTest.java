@@ -0,0 +1,148 @@
+package org.sil.bloom.reader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ChannelZipFileTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void entries_normalZip_readsDeflatedAndStoredEntries() throws Exception {
+        File book = tempFolder.newFile("good.bloompub");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(book))) {
+            addEntry(zip, "index.htm", "<html><body></body></html>");
+            addStoredEntry(zip, "audio/a.mp3", "not really audio");
+            zip.putNextEntry(new ZipEntry("video/"));
+            zip.closeEntry();
+        }
+        try (ChannelZipFile zip = open(book)) {
+            assertThat(zip.entries().size(), is(3));
+            assertThat(read(zip, "index.htm"), is("<html><body></body></html>"));
+            assertThat(read(zip, "audio/a.mp3"), is("not really audio"));
+            assertThat(zip.getEntry("audio/a.mp3").getSize(), is(16L));
+            assertThat(zip.getEntry("video/").isDirectory(), is(true));
+            assertThat(zip.getEntry("missing.htm") == null, is(true));
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void open_truncatedCentralDirectory_throws() throws Exception {
+        File book = makeBook("good.bloompub", "index.htm");
+        byte[] content = Files.readAllBytes(book.toPath());
+        File truncated = tempFolder.newFile("truncated.bloompub");
+        Files.write(truncated.toPath(), Arrays.copyOf(content, content.length - 30));
+        open(truncated).close();
+    }
+
+    @Test(expected = ZipException.class)
+    public void open_centralDirectoryPastEnd_throws() throws Exception {
+        File book = makeBook("good.bloompub", "index.htm");
+        byte[] content = Files.readAllBytes(book.toPath());
+        // The offset of the central directory is at 16 in the end record, which is the last 22 bytes.
+        int offset = content.length - 22 + 16;
+        content[offset + 3] = 0x7f;
+        Files.write(book.toPath(), content);
+        open(book).close();
+    }
+
+    @Test(expected = ZipException.class)
+    public void open_zip64_throws() throws Exception {
+        File book = makeBook("good.bloompub", "index.htm");
+        byte[] content = Files.readAllBytes(book.toPath());
+        // An entry count of 0xffff in the end record means the real one is in a ZIP64 record.
+        int offset = content.length - 22 + 10;
+        content[offset] = (byte) 0xff;
+        content[offset + 1] = (byte) 0xff;
+        Files.write(book.toPath(), content);
+        open(book).close();
+    }
+
+    @Test(expected = ZipException.class)
+    public void open_entryOutsideFolder_throws() throws Exception {
+        File book = makeBook("bad.bloompub", "audio/../../databases/bookIndex.db");
+        open(book).close();
+    }
+
+    @Test(expected = ZipException.class)
+    public void open_absoluteEntryName_throws() throws Exception {
+        File book = makeBook("bad.bloompub", "/data/bookIndex.db");
+        open(book).close();
+    }
+
+    @Test
+    public void isSafeEntryName_dotsInNames_onlyRejectsParentSegments() {
+        assertThat(ChannelZipFile.isSafeEntryName("audio/a..b.mp3"), is(true));
+        assertThat(ChannelZipFile.isSafeEntryName("..audio/a.mp3"), is(true));
+        assertThat(ChannelZipFile.isSafeEntryName("../a.mp3"), is(false));
+        assertThat(ChannelZipFile.isSafeEntryName("audio\\..\\a.mp3"), is(false));
+    }
+
+    private ChannelZipFile open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new ChannelZipFile(channel, null);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private File makeBook(String name, String entryName) throws Exception {
+        File book = tempFolder.newFile(name);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(book))) {
+            addEntry(zip, entryName, "<html><body></body></html>");
+        }
+        return book;
+    }
+
+    private void addEntry(ZipOutputStream zip, String name, String content) throws Exception {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private void addStoredEntry(ZipOutputStream zip, String name, String content) throws Exception {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+
+    private String read(ChannelZipFile zip, String name) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream input = zip.getInputStream(zip.getEntry(name))) {
+            byte[] buffer = new byte[8];
+            int count;
+            while ((count = input.read(buffer)) > 0)
+                result.write(buffer, 0, count);
+        }
+        return new String(result.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -1,14 +1,25 @@
 package org.sil.bloom.reader;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 
 public class IOUtilitiesTest {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Test
     public void getFilename_fileNameOnly_returnFileName() {
         String fileNameOrPath = "abc.bloompub";
@@ -44,4 +55,57 @@ public class IOUtilitiesTest {
         String fileNameOrPath = File.separator + "document" + File.separator + "primary:abc.bloompub";
         assertThat(IOUtilities.getFilename(fileNameOrPath), is("abc.bloompub"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void isValidZipFile_centralDirectory_goodBook_returnsTrueAndMeta() throws Exception {
+        File book = makeBook("good.bloompub");
+        TextFileContent meta = new TextFileContent("meta.json");
+        assertThat(IOUtilities.isValidZipFile(book, IOUtilities.CHECK_BLOOMPUB, meta, IOUtilities.VALIDATE_CENTRAL_DIRECTORY), is(true));
+        assertThat(meta.Content, is("{\"title\":\"Moon and Cap\"}"));
+    }
+
+    @Test
+    public void isValidZipFile_centralDirectory_truncatedBook_returnsFalse() throws Exception {
+        File book = makeBook("good.bloompub");
+        byte[] content = Files.readAllBytes(book.toPath());
+        File truncated = tempFolder.newFile("truncated.bloompub");
+        Files.write(truncated.toPath(), Arrays.copyOf(content, content.length - 30));
+        assertThat(IOUtilities.isValidZipFile(truncated, IOUtilities.CHECK_BLOOMPUB, null, IOUtilities.VALIDATE_CENTRAL_DIRECTORY), is(false));
+    }
+
+    @Test
+    public void isEntryConsistent_deflatedBiggerThanPossible_returnsFalse() {
+        ZipEntry entry = new ZipEntry("audio/a.mp3");
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setSize(10);
+        entry.setCompressedSize(1000);
+        entry.setCrc(1234);
+        assertThat(IOUtilities.isEntryConsistent(entry), is(false));
+    }
+
+    @Test
+    public void isEntryConsistent_storedSizesDiffer_returnsFalse() {
+        ZipEntry entry = new ZipEntry("audio/a.mp3");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(10);
+        entry.setCompressedSize(9);
+        entry.setCrc(1234);
+        assertThat(IOUtilities.isEntryConsistent(entry), is(false));
+    }
+
+    private File makeBook(String name) throws Exception {
+        File book = tempFolder.newFile(name);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(book))) {
+            addEntry(zip, "index.htm", "<html><body></body></html>");
+            addEntry(zip, "basePage.css", "body {}");
+            addEntry(zip, "meta.json", "{\"title\":\"Moon and Cap\"}");
+        }
+        return book;
+    }
+
+    private void addEntry(ZipOutputStream zip, String name, String content) throws Exception {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+}
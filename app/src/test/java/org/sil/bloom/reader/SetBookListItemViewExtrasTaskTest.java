@@ -0,0 +1,63 @@
+package org.sil.bloom.reader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class SetBookListItemViewExtrasTaskTest {
+
+    @Test
+    public void lifoQueue_takesNewestFirst() throws Exception {
+        SetBookListItemViewExtrasTask.LifoQueue queue = new SetBookListItemViewExtrasTask.LifoQueue();
+        Runnable a = () -> {};
+        Runnable b = () -> {};
+        Runnable c = () -> {};
+        queue.offer(a);
+        queue.add(b);
+        queue.put(c);
+        assertThat(queue.take(), is(c));
+        assertThat(queue.take(), is(b));
+        assertThat(queue.take(), is(a));
+    }
+
+    @Test
+    public void lifoQueue_inExecutor_runsMostRecentlyQueuedFirst() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new SetBookListItemViewExtrasTask.LifoQueue());
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(4);
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            executor.execute(() -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add(0);
+                done.countDown();
+            });
+            for (int i = 1; i <= 3; i++) {
+                final int task = i;
+                executor.execute(() -> {
+                    order.add(task);
+                    done.countDown();
+                });
+            }
+            blocker.countDown();
+            assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(order, is(Arrays.asList(0, 3, 2, 1)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
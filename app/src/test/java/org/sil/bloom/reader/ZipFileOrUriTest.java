@@ -0,0 +1,57 @@
+package org.sil.bloom.reader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ZipFileOrUriTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void findFirstMatching_entryOutsideFolder_extractsNothing() throws Exception {
+        File book = tempFolder.newFile("bad.bloompub");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(book))) {
+            zip.putNextEntry(new ZipEntry("audio/../../bookIndex.db"));
+            zip.write("not a database".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        File outputDir = tempFolder.newFolder("temp");
+        ZipFileOrUri zip = new ZipFileOrUri(book, outputDir.getPath());
+        try {
+            assertThat(zip.findFirstMatching(name -> name.startsWith("audio/")) == null, is(true));
+        } finally {
+            zip.close();
+        }
+        assertThat(new File(tempFolder.getRoot(), "bookIndex.db").exists(), is(false));
+    }
+
+    @Test
+    public void tryGetFile_normalEntry_extractsUnderOutputDir() throws Exception {
+        File book = tempFolder.newFile("good.bloompub");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(book))) {
+            zip.putNextEntry(new ZipEntry("audio/a.mp3"));
+            zip.write("not really audio".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        File outputDir = tempFolder.newFolder("temp");
+        ZipFileOrUri zip = new ZipFileOrUri(book, outputDir.getPath());
+        try {
+            File extracted = zip.tryGetFile("audio/a.mp3");
+            assertThat(extracted.getCanonicalPath(), is(new File(outputDir, "audio/a.mp3").getCanonicalPath()));
+            assertThat(extracted.length(), is(16L));
+        } finally {
+            zip.close();
+        }
+    }
+}
@@ -2,7 +2,9 @@ package org.sil.bloom.reader.models;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -111,4 +113,26 @@ public class BookCollectionTest {
         BookCollection.setShelvesAndTitleOfBook(shelf);
         assertThat(shelf.isBookInAnyShelf(new HashSet<String>()), is(false));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void findInsertionPoint_keepsListSorted() throws Exception {
+        List<BookOrShelf> books = new ArrayList<>();
+        books.add(new BookOrShelf("nowhere/book 1"));
+        books.add(new BookOrShelf("nowhere/book 3"));
+        books.add(new BookOrShelf("nowhere/book 10"));
+        assertThat(BookCollection.findInsertionPoint(books, new BookOrShelf("nowhere/book 2")), is(1));
+        assertThat(BookCollection.findInsertionPoint(books, new BookOrShelf("nowhere/book 0")), is(0));
+        assertThat(BookCollection.findInsertionPoint(books, new BookOrShelf("nowhere/book 20")), is(3));
+    }
+
+    @Test
+    public void findInsertionPoint_alreadyPresent_minusOne() throws Exception {
+        List<BookOrShelf> books = new ArrayList<>();
+        BookOrShelf book = new BookOrShelf("nowhere/book 1");
+        books.add(book);
+        books.add(new BookOrShelf("nowhere/book 3"));
+        assertThat(BookCollection.findInsertionPoint(books, book), is(-1));
+        // A different book that sorts the same still gets inserted.
+        assertThat(BookCollection.findInsertionPoint(books, new BookOrShelf("elsewhere/book 1")) >= 0, is(true));
+    }
+}
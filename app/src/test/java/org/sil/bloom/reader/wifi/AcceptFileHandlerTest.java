@@ -0,0 +1,38 @@
+package org.sil.bloom.reader.wifi;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class AcceptFileHandlerTest {
+
+    @Test
+    public void parseRangeStart_wholeFile_returnsZero() {
+        assertThat(AcceptFileHandler.parseRangeStart("bytes 0-1999/2000"), is(0L));
+    }
+
+    @Test
+    public void parseRangeStart_knownTotal_returnsStart() {
+        assertThat(AcceptFileHandler.parseRangeStart("bytes 1000-1999/2000"), is(1000L));
+    }
+
+    @Test
+    public void parseRangeStart_unknownTotal_returnsStart() {
+        assertThat(AcceptFileHandler.parseRangeStart(" bytes  5-9/* "), is(5L));
+    }
+
+    @Test
+    public void parseRangeStart_bigFile_returnsStart() {
+        assertThat(AcceptFileHandler.parseRangeStart("bytes 3000000000-3999999999/4000000000"), is(3000000000L));
+    }
+
+    @Test
+    public void parseRangeStart_notUnderstood_returnsMinusOne() {
+        assertThat(AcceptFileHandler.parseRangeStart(""), is(-1L));
+        assertThat(AcceptFileHandler.parseRangeStart("items 10-20/30"), is(-1L));
+        assertThat(AcceptFileHandler.parseRangeStart("bytes */2000"), is(-1L));
+        assertThat(AcceptFileHandler.parseRangeStart("bytes 10-/2000"), is(-1L));
+        assertThat(AcceptFileHandler.parseRangeStart("bytes 99999999999999999999-1/2"), is(-1L));
+    }
+}
@@ -0,0 +1,133 @@
+package org.sil.bloom.reader.wifi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class BookTransferSchedulerTest {
+    private static final String SENDER = "192.168.1.2";
+
+    private long now;
+    private final List<String> requested = new ArrayList<>();
+    private int finishedCount;
+    private boolean requestedWhileLocked;
+    private BookTransferScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        now = 1000;
+        scheduler = new BookTransferScheduler(new BookTransferScheduler.Requester() {
+            @Override
+            public void requestBook(String senderIP, String title, String version) {
+                requested.add(title);
+                requestedWhileLocked |= Thread.holdsLock(scheduler);
+            }
+
+            @Override
+            public void bookReceived(String title, String path, boolean success) {
+            }
+
+            @Override
+            public void allTransfersFinished() {
+                finishedCount++;
+            }
+        }, () -> now);
+    }
+
+    @Test
+    public void advertised_manyBooks_asksForTwoInOrder() {
+        advertise("a", "b", "c");
+        assertThat(requested, is(Arrays.asList("a", "b")));
+        assertThat(scheduler.isWanted("c"), is(true));
+    }
+
+    @Test
+    public void advertised_sameBookAgain_asksOnce() {
+        advertise("a");
+        advertise("a");
+        assertThat(requested, is(Arrays.asList("a")));
+    }
+
+    @Test
+    public void receivedFile_asksForNextWaitingBook() {
+        advertise("a", "b", "c");
+        scheduler.receivingFile("a.bloompub");
+        scheduler.receivedFile("/books/a.bloompub", true);
+        assertThat(requested, is(Arrays.asList("a", "b", "c")));
+        assertThat(scheduler.isWanted("a"), is(false));
+        assertThat(finishedCount, is(0));
+    }
+
+    @Test
+    public void receivedFile_last_allTransfersFinished() {
+        advertise("a");
+        scheduler.receivingFile("a.bloompub");
+        scheduler.receivedFile("/books/a.bloompub", true);
+        assertThat(finishedCount, is(1));
+    }
+
+    @Test
+    public void advertised_noResponseBeforeTimeout_asksAgain() {
+        advertise("a");
+        now += BookTransferScheduler.REQUEST_TIMEOUT_MS;
+        advertise("a");
+        assertThat(requested, is(Arrays.asList("a")));
+        now += 1;
+        advertise("a");
+        assertThat(requested, is(Arrays.asList("a", "a")));
+    }
+
+    @Test
+    public void advertised_anotherBookArriving_doesNotAskAgain() {
+        advertise("a", "b");
+        scheduler.receivingFile("a.bloompub");
+        // The desktop sends one at a time, and "a" takes a long while.
+        for (int i = 0; i < 10; i++) {
+            now += 1000;
+            advertise("b");
+        }
+        assertThat(requested, is(Arrays.asList("a", "b")));
+        // Once "a" is done, "b" gets the usual time to start.
+        scheduler.receivedFile("/books/a.bloompub", true);
+        now += BookTransferScheduler.REQUEST_TIMEOUT_MS;
+        advertise("b");
+        assertThat(requested, is(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void advertised_waitingBookNoLongerAdvertised_isDropped() {
+        advertise("a", "b", "c");
+        now += BookTransferScheduler.STALE_ADVERTISEMENT_MS + 1;
+        scheduler.receivingFile("a.bloompub");
+        scheduler.receivedFile("/books/a.bloompub", true);
+        assertThat(requested, is(Arrays.asList("a", "b")));
+        assertThat(scheduler.isWanted("c"), is(false));
+    }
+
+    @Test
+    public void requestBook_calledWithoutHoldingTheLock() {
+        advertise("a", "b", "c");
+        scheduler.receivingFile("a.bloompub");
+        scheduler.receivedFile("/books/a.bloompub", true);
+        assertThat(requested, is(Arrays.asList("a", "b", "c")));
+        assertThat(requestedWhileLocked, is(false));
+    }
+
+    @Test
+    public void receivingFile_notRequested_isNotAskedFor() {
+        scheduler.receivingFile("a.bloompub");
+        advertise("a");
+        assertThat(requested.isEmpty(), is(true));
+    }
+
+    private void advertise(String... titles) {
+        for (String title : titles)
+            scheduler.advertised(SENDER, title, "1");
+    }
+}